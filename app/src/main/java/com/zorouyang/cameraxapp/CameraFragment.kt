@@ -42,6 +42,7 @@ import android.util.Rational
 import android.util.Size
 import android.view.*
 import android.webkit.MimeTypeMap
+import android.widget.EditText
 import android.widget.Toast
 import androidx.appcompat.app.AlertDialog
 import androidx.camera.core.*
@@ -52,26 +53,20 @@ import androidx.fragment.app.Fragment
 import com.google.zxing.Result
 import com.zorouyang.cameraxapp.util.*
 import java.io.File
-import java.nio.ByteBuffer
 import java.text.SimpleDateFormat
 import java.util.*
-import java.util.concurrent.TimeUnit
-import kotlin.collections.ArrayList
 
 /** Milliseconds used for UI animations */
 const val ANIMATION_FAST_MILLIS = 50L
 const val ANIMATION_SLOW_MILLIS = 100L
 
-/** Helper type alias used for analysis use case callbacks */
-typealias LumaListener = (luma: Double) -> Unit
-
 /**
  * Main fragment for this app. Implements all camera operations including:
  * - Viewfinder
  * - Photo taking
  * - Image analysis
  */
-class CameraFragment : Fragment(), Decoder.OnResultListener {
+class CameraFragment : Fragment(), Decoder.OnResultListener, Decoder.OnMultipleResultListener {
 
     private lateinit var container: ConstraintLayout
     private lateinit var viewFinder: TextureView
@@ -118,6 +113,20 @@ class CameraFragment : Fragment(), Decoder.OnResultListener {
     override fun onOptionsItemSelected(item: MenuItem): Boolean {
         if (item.itemId == R.id.action_flash) {
             preview.enableTorch(!preview.isTorchOn)
+        } else if (item.itemId == R.id.action_all_formats) {
+            item.isChecked = !item.isChecked
+            setAllFormats(item.isChecked)
+        } else if (item.itemId == R.id.action_multiple_codes) {
+            item.isChecked = !item.isChecked
+            if (::decodeScheduler.isInitialized)
+                decodeScheduler.setOnMultipleResultListener(if (item.isChecked) this else null)
+        } else if (item.itemId == R.id.action_continuous) {
+            item.isChecked = !item.isChecked
+            setContinuous(item.isChecked)
+        } else if (item.itemId == R.id.action_index_gallery) {
+            indexGallery()
+        } else if (item.itemId == R.id.action_search_codes) {
+            searchCodes()
         }
         return super.onOptionsItemSelected(item)
     }
@@ -125,6 +134,21 @@ class CameraFragment : Fragment(), Decoder.OnResultListener {
     override fun onDestroyView() {
         super.onDestroyView()
         CameraX.unbindAll()
+        if (::decodeScheduler.isInitialized) decodeScheduler.shutdown()
+        // The cancelled batch still reports back, its callbacks see the view is gone
+        batchProgress?.dismiss()
+        batchProgress = null
+        batch?.cancel()
+        batchImageDecoder?.shutdown()
+        batchImageDecoder = null
+        // Waits for the walk, it may be writing a page
+        mediaStoreIndexer?.shutdown()
+        mediaStoreIndexer = null
+        codeIndex?.close()
+        codeIndex = null
+        decodeResultCache?.close()
+        decodeResultCache = null
+        context?.applicationContext?.unregisterComponentCallbacks(Decoder.getFramePool())
         //displayManager.unregisterDisplayListener(displayListener)
     }
 
@@ -149,6 +173,9 @@ class CameraFragment : Fragment(), Decoder.OnResultListener {
         if (ContextCompat.checkSelfPermission(context!!, Manifest.permission.CAMERA) != PackageManager.PERMISSION_GRANTED)
             return
 
+        // Let the frame pool give its buffers back under memory pressure
+        context!!.applicationContext.registerComponentCallbacks(Decoder.getFramePool())
+
         // Wait for the views to be properly laid out
         viewFinder.post {
             // Keep track of the display in which this view is attached
@@ -157,6 +184,7 @@ class CameraFragment : Fragment(), Decoder.OnResultListener {
             // Build UI controls and bind all camera use cases
             updateCameraUi()
             bindCameraUseCases()
+            decodeSharedImages()
         }
     }
 
@@ -197,52 +225,84 @@ class CameraFragment : Fragment(), Decoder.OnResultListener {
 
         imageCapture = ImageCapture(imageCaptureConfig)
 
-        // Setup image analysis pipeline that computes average pixel luminance in real time
+        // The analysis resolution is calibrated per device model, see ResolutionController
+        resolutionController = ResolutionController(context!!,
+                ResolutionController.OnTierChangedListener { rebindImageAnalysis(it) })
+        imageAnalyzer = buildImageAnalysis(resolutionController.resolution)
+        decodeScheduler = DecodeScheduler(DecodeScheduler.defaultWorkerCount(),
+                Size(viewFinder.width, viewFinder.height), this)
+        decodeScheduler.setResolutionController(resolutionController)
+        decodeScheduler.setFrameFilter(frameQualityFilter)
+        setAnalyzer()
+
+        // Apply declared configs to CameraX using the same lifecycle owner
+        CameraX.bindToLifecycle(
+                viewLifecycleOwner, preview, imageCapture, imageAnalyzer)
+
+        decoder = Decoder(Size(viewFinder.width, viewFinder.height), this)
+
+        updateViewFinder()
+    }
+
+    /** Setup image analysis pipeline that decodes frames in real time */
+    private fun buildImageAnalysis(resolution: Size): ImageAnalysis {
         val analyzerConfig = ImageAnalysisConfig.Builder().apply {
             setLensFacing(lensFacing)
-            // Use a worker thread for image analysis to prevent preview glitches
-            val analyzerThread = HandlerThread("LuminosityAnalysis").apply { start() }
+            // Use a worker thread for image analysis to prevent preview glitches, it only hands
+            // frames over to the decode workers
             setCallbackHandler(Handler(analyzerThread.looper))
             // In our analysis, we care more about the latest image than analyzing *every* image
             setImageReaderMode(ImageAnalysis.ImageReaderMode.ACQUIRE_LATEST_IMAGE)
             // Set initial target rotation, we will have to call this again if rotation changes
             // during the lifecycle of this use case
             setTargetRotation(viewFinder.display.rotation)
-//            setTargetResolution(Size(1920, 1080))
-            setTargetResolution(Size(4256, 2832))
+            setTargetResolution(resolution)
         }.build()
+        return ImageAnalysis(analyzerConfig)
+    }
 
-        /*imageAnalyzer = ImageAnalysis(analyzerConfig).apply {
-            analyzer = LuminosityAnalyzer { luma ->
-                // Values returned from our analyzer are passed to the attached listener
-                // We log image analysis results here -- you should do something useful instead!
-                val fps = (analyzer as LuminosityAnalyzer).framesPerSecond
-                Log.d(TAG, "Average luminosity: $luma. " +
-                        "Frames per second: ${"%.01f".format(fps)}")
-            }
-        }*/
-        imageAnalyzer = ImageAnalysis(analyzerConfig)
-        setAnalyzer()
-
-        // Apply declared configs to CameraX using the same lifecycle owner
-        CameraX.bindToLifecycle(
-                viewLifecycleOwner, preview, imageCapture, imageAnalyzer)
-
-        decoder = Decoder(Size(viewFinder.width, viewFinder.height), this)
+    /** Swap the analysis use case for one at [resolution], the other use cases keep running */
+    private fun rebindImageAnalysis(resolution: Size) {
+        if (view == null) return
+        Log.d(TAG, "Rebind image analysis at $resolution")
+        CameraX.unbind(imageAnalyzer)
+        imageAnalyzer = buildImageAnalysis(resolution)
+        // While a result is showing the analyzer is attached again once it is dismissed
+        if (dialog?.isShowing != true) setAnalyzer()
+        CameraX.bindToLifecycle(viewLifecycleOwner, imageAnalyzer)
+    }
 
-        updateViewFinder()
+    /** Switch live and gallery decoding between QR code only and [Decoder.ALL_FORMATS] */
+    private fun setAllFormats(enabled: Boolean) {
+        allFormats = enabled
+        if (!::decoder.isInitialized) return
+        val formats = if (enabled) Decoder.ALL_FORMATS else null
+        formatCostTracker = decodeScheduler.setFormats(formats)
+        decoder.setFormats(formats, formatCostTracker)
+        batchImageDecoder?.setFormats(formats, formatCostTracker)
     }
 
     private lateinit var decoder: Decoder
+    private lateinit var decodeScheduler: DecodeScheduler
+    private var formatCostTracker: FormatCostTracker? = null
+    private var allFormats = false
+    private val frameQualityFilter = FrameQualityFilter()
+    private val frameStats = FrameStats(FRAME_STATS_SAMPLE_STEP)
+    @Volatile private var resultCache: ResultCache? = null
+    private lateinit var resolutionController: ResolutionController
+    private val analyzerThread by lazy { HandlerThread("LuminosityAnalysis").apply { start() } }
     private var dialog: Dialog? = null
 
     private fun setAnalyzer() {
         imageAnalyzer.setAnalyzer { image: ImageProxy, rotationDegrees: Int ->
-            val buffer = image.planes[0].buffer
-            val bytes = ByteArray(buffer.capacity()).also { buffer.get(it) }
-
-            decoder.decode(bytes, image.width, image.height)
+            // Hand the Y plane to the decode workers, a newer frame replaces one still waiting
+            val plane = image.planes[0]
+            frameStats.update(plane.buffer, image.width, image.height, plane.rowStride, plane.pixelStride)
+            frameStats.logIfDue(TAG)
+            decodeScheduler.submit(plane.buffer, image.width, image.height, plane.rowStride, plane.pixelStride,
+                    rotationDegrees)
         }
+        decodeScheduler.rearm()
     }
 
     private fun updateViewFinder() {
@@ -328,7 +388,28 @@ class CameraFragment : Fragment(), Decoder.OnResultListener {
         }
     }
 
+    /**
+     * In continuous mode the analyzer keeps running, codes are reported once each while they stay
+     * in view instead of stopping the scan with a dialog
+     */
+    private fun setContinuous(enabled: Boolean) {
+        if (!::decodeScheduler.isInitialized) return
+        resultCache = if (enabled) ResultCache(CONTINUOUS_CACHE_SIZE, CONTINUOUS_CACHE_TTL_MILLIS) else null
+        decodeScheduler.setContinuous(resultCache)
+    }
+
+    /** Show a code found in continuous mode, without stopping the analyzer */
+    private fun showContinuousResult(text: String) {
+        activity?.runOnUiThread {
+            Toast.makeText(context, text, Toast.LENGTH_SHORT).show()
+        }
+    }
+
     override fun onResult(result: Result?) {
+        if (resultCache != null) {
+            showContinuousResult("${result?.barcodeFormat?.name}: ${result?.text}")
+            return
+        }
         activity?.runOnUiThread {
             // Stop analysis while showing dialog
             imageAnalyzer.removeAnalyzer()
@@ -348,37 +429,184 @@ class CameraFragment : Fragment(), Decoder.OnResultListener {
         }
     }
 
+    override fun onResults(results: List<Result>) {
+        if (resultCache != null) {
+            showContinuousResult(results.joinToString("\n") { "${it.barcodeFormat.name}: ${it.text}" })
+            return
+        }
+        activity?.runOnUiThread {
+            // Stop analysis while showing dialog
+            imageAnalyzer.removeAnalyzer()
+
+            // Avoid showing more than one dialog
+            if (dialog?.isShowing == true) {
+                return@runOnUiThread
+            }
+
+            dialog = AlertDialog.Builder(context!!)
+                .setTitle("${results.size} codes")
+                .setMessage(results.joinToString("\n") { "${it.barcodeFormat.name}: ${it.text}" })
+                .setPositiveButton(android.R.string.ok) { _, _ -> setAnalyzer() }
+                .setOnCancelListener { setAnalyzer() }
+                .show()
+        }
+    }
+
     private val _accessExternalStorage = 100
     private val _accessGalleryCode = 101
+    private val _indexGalleryCode = 102
+
+    private var codeIndex: CodeIndex? = null
+    private var mediaStoreIndexer: MediaStoreIndexer? = null
+
+    private fun getCodeIndex() = codeIndex ?: CodeIndex(context!!).also { codeIndex = it }
+
+    private fun getDecodeResultCache() = decodeResultCache
+            ?: DecodeResultCache(context!!, DECODE_RESULT_CACHE_SIZE).also { decodeResultCache = it }
+
+    /** Decode the new and changed gallery images into the code index, in the background */
+    private fun indexGallery() {
+        if (ContextCompat.checkSelfPermission(context!!, Manifest.permission.READ_EXTERNAL_STORAGE) != PackageManager.PERMISSION_GRANTED) {
+            requestPermissions(arrayOf(Manifest.permission.READ_EXTERNAL_STORAGE), _indexGalleryCode)
+            return
+        }
+        val indexer = mediaStoreIndexer ?: MediaStoreIndexer(context!!, getCodeIndex(),
+                MediaStoreIndexer.defaultThreadCount()).also { mediaStoreIndexer = it }
+        val started = indexer.start(object : MediaStoreIndexer.Listener {
+            override fun onProgress(scanned: Int, decoded: Int, found: Int) {
+                Log.d(TAG, "Indexing gallery: $scanned images, $decoded decoded, $found with a code")
+            }
+
+            override fun onFinished(scanned: Int, decoded: Int, found: Int, cancelled: Boolean) {
+                if (view == null) return
+                Toast.makeText(context, "Indexed $scanned images, $decoded decoded, $found with a code" +
+                        if (cancelled) " (stopped)" else "", Toast.LENGTH_LONG).show()
+            }
+        })
+        Toast.makeText(context, if (started) "Indexing gallery" else "Already indexing", Toast.LENGTH_SHORT).show()
+    }
+
+    /** Search the texts of the indexed codes */
+    private fun searchCodes() {
+        val input = EditText(context)
+        AlertDialog.Builder(context!!)
+            .setTitle("Search codes")
+            .setView(input)
+            .setPositiveButton(android.R.string.search_go) { _, _ ->
+                val query = input.text.toString()
+                val index = getCodeIndex()
+                Thread {
+                    val entries = index.search(query, SEARCH_LIMIT)
+                    activity?.runOnUiThread {
+                        val context = context ?: return@runOnUiThread
+                        dialog = AlertDialog.Builder(context)
+                            .setTitle("${entries.size} images for \"$query\"")
+                            .setMessage(entries.joinToString("\n") { "${it.format}: ${it.text}\n${it.path}" })
+                            .setPositiveButton(android.R.string.ok, null)
+                            .show()
+                    }
+                }.start()
+            }
+            .setNegativeButton(android.R.string.cancel, null)
+            .show()
+    }
+
+    private var batchImageDecoder: BatchImageDecoder? = null
+    private var decodeResultCache: DecodeResultCache? = null
+    private var batch: BatchImageDecoder.Batch? = null
+    private var batchProgress: Dialog? = null
 
     private fun goPicture() {
         val intent = Intent(Intent.ACTION_GET_CONTENT);
         intent.type = "image/*";
+        intent.putExtra(Intent.EXTRA_ALLOW_MULTIPLE, true)
         startActivityForResult(intent, _accessGalleryCode);
     }
 
-    private fun decodeImage(contentUri: Uri) {
-        try {
-            val result = decoder.decode(GalleryPhotoUtil.getPath(context, contentUri))//ImageDecoder.scanQRImage(context, contentUri)
-            Log.i(TAG, "result: $result")
+    /** Decode the images shared to the app with [Intent.ACTION_SEND_MULTIPLE], once */
+    private fun decodeSharedImages() {
+        val intent = activity?.intent ?: return
+        if (intent.action != Intent.ACTION_SEND_MULTIPLE) return
+        val uris = intent.getParcelableArrayListExtra<Uri>(Intent.EXTRA_STREAM) ?: return
+        intent.action = null
+        decodeImages(uris)
+    }
 
-            if (result == null) {
-                Toast.makeText(context, "No QRCode was identified", Toast.LENGTH_LONG).show()
-                return
-            } else {
-                // has handler with onResultListener
-            }
-        } catch (e: Exception) {
-            Log.e(TAG, "Exception: ${e.message}", e)
+    /**
+     * Decode the images on the batch workers, off the UI thread. A single image is reported like a
+     * live result, a batch with a progress dialog that lists the codes as they are found
+     */
+    private fun decodeImages(uris: List<Uri>) {
+        val batchDecoder = batchImageDecoder ?: BatchImageDecoder(context!!,
+                BatchImageDecoder.defaultThreadCount(), BatchImageDecoder.defaultMaxBitmaps()).also {
+            it.setFormats(if (allFormats) Decoder.ALL_FORMATS else null, formatCostTracker)
+            it.setResultCache(getDecodeResultCache(), false)
+            batchImageDecoder = it
+        }
+        batch?.cancel()
+
+        if (uris.size == 1) {
+            batch = batchDecoder.decode(uris, object : BatchImageDecoder.Listener {
+                override fun onImageDecoded(index: Int, uri: Uri, result: Result?, failed: Boolean, done: Int, total: Int) {
+                    Log.i(TAG, "result: $result")
+                    if (view == null) return
+                    when {
+                        failed -> Toast.makeText(context, "Could not read the image", Toast.LENGTH_LONG).show()
+                        result == null -> Toast.makeText(context, "No QRCode was identified", Toast.LENGTH_LONG).show()
+                        else -> onResult(result)
+                    }
+                }
+
+                override fun onBatchFinished(found: Int, total: Int, cancelled: Boolean) = Unit
+            })
+            return
         }
+
+        val codes = StringBuilder()
+        val progress = AlertDialog.Builder(context!!)
+            .setTitle("Decoding ${uris.size} images")
+            .setMessage("0 / ${uris.size}")
+            .setNegativeButton(android.R.string.cancel) { _, _ -> batch?.cancel() }
+            .setCancelable(false)
+            .show()
+        batchProgress = progress
+        batch = batchDecoder.decode(uris, object : BatchImageDecoder.Listener {
+            override fun onImageDecoded(index: Int, uri: Uri, result: Result?, failed: Boolean, done: Int, total: Int) {
+                if (view == null) return
+                if (failed) {
+                    codes.append("${index + 1}. Could not read the image\n")
+                } else if (result != null) {
+                    codes.append("${index + 1}. ${result.barcodeFormat.name}: ${result.text}\n")
+                }
+                progress.setMessage("$done / $total\n\n$codes")
+            }
+
+            override fun onBatchFinished(found: Int, total: Int, cancelled: Boolean) {
+                // Cancelled by onDestroyView, which already dismissed the progress
+                if (view == null) return
+                progress.dismiss()
+                if (batchProgress === progress) batchProgress = null
+                dialog = AlertDialog.Builder(context!!)
+                    .setTitle("$found of $total images with a code" + if (cancelled) " (cancelled)" else "")
+                    .setMessage(codes)
+                    .setPositiveButton(android.R.string.ok, null)
+                    .show()
+            }
+        })
     }
 
     override fun onActivityResult(requestCode: Int, resultCode: Int, data: Intent?) {
         super.onActivityResult(requestCode, resultCode, data)
         if (requestCode == _accessGalleryCode && resultCode == Activity.RESULT_OK) {
-            val contentUri = data?.data ?: return
+            // Several images come as clip data, a single one as the data uri
+            val clipData = data?.clipData
+            val uris = if (clipData != null) {
+                (0 until clipData.itemCount).map { clipData.getItemAt(it).uri }
+            } else {
+                listOf(data?.data ?: return)
+            }
 
-            decodeImage(contentUri)
+            decodeImages(uris)
         }
     }
 
@@ -388,6 +616,10 @@ class CameraFragment : Fragment(), Decoder.OnResultListener {
             if (grantResults[0] == PackageManager.PERMISSION_GRANTED) {
                 goPicture()
             }
+        } else if (requestCode == _indexGalleryCode && grantResults.isNotEmpty()) {
+            if (grantResults[0] == PackageManager.PERMISSION_GRANTED) {
+                indexGallery()
+            }
         }
     }
 
@@ -419,90 +651,15 @@ class CameraFragment : Fragment(), Decoder.OnResultListener {
         }
     }
 
-    /**
-     * Our custom image analysis class.
-     *
-     * <p>All we need to do is override the function `analyze` with our desired operations. Here,
-     * we compute the average luminosity of the image by looking at the Y plane of the YUV frame.
-     */
-    private class LuminosityAnalyzer(listener: LumaListener? = null) : ImageAnalysis.Analyzer {
-        private val frameRateWindow = 8
-        private val frameTimestamps = ArrayDeque<Long>(5)
-        private val listeners = ArrayList<LumaListener>().apply { listener?.let { add(it) } }
-        private var lastAnalyzedTimestamp = 0L
-        var framesPerSecond: Double = -1.0
-            private set
-
-        /**
-         * Used to add listeners that will be called with each luma computed
-         */
-        fun onFrameAnalyzed(listener: LumaListener) = listeners.add(listener)
-
-        /**
-         * Helper extension function used to extract a byte array from an image plane buffer
-         */
-        private fun ByteBuffer.toByteArray(): ByteArray {
-            rewind()    // Rewind the buffer to zero
-            val data = ByteArray(remaining())
-            get(data)   // Copy the buffer into a byte array
-            return data // Return the byte array
-        }
-
-        /**
-         * Analyzes an image to produce a result.
-         *
-         * <p>The caller is responsible for ensuring this analysis method can be executed quickly
-         * enough to prevent stalls in the image acquisition pipeline. Otherwise, newly available
-         * images will not be acquired and analyzed.
-         *
-         * <p>The image passed to this method becomes invalid after this method returns. The caller
-         * should not store external references to this image, as these references will become
-         * invalid.
-         *
-         * @param image image being analyzed VERY IMPORTANT: do not close the image, it will be
-         * automatically closed after this method returns
-         * @return the image analysis result
-         */
-        override fun analyze(image: ImageProxy, rotationDegrees: Int) {
-            Log.d(TAG, "analyze: ${image.width}x${image.height}, degrees: $rotationDegrees" )
-            // If there are no listeners attached, we don't need to perform analysis
-            if (listeners.isEmpty()) return
-
-            // Keep track of frames analyzed
-            frameTimestamps.push(System.currentTimeMillis())
-
-            // Compute the FPS using a moving average
-            while (frameTimestamps.size >= frameRateWindow) frameTimestamps.removeLast()
-            framesPerSecond = 1.0 / ((frameTimestamps.peekFirst() -
-                    frameTimestamps.peekLast())  / frameTimestamps.size.toDouble()) * 1000.0
-
-            // Calculate the average luma no more often than every second
-            if (frameTimestamps.first - lastAnalyzedTimestamp >= TimeUnit.SECONDS.toMillis(1)) {
-                // Since format in ImageAnalysis is YUV, image.planes[0] contains the Y
-                // (luminance) plane
-                val buffer = image.planes[0].buffer
-
-                // Extract image data from callback object
-                val data = buffer.toByteArray()
-
-                // Convert the data into an array of pixel values
-                val pixels = data.map { it.toInt() and 0xFF }
-
-                // Compute average luminance for the image
-                val luma = pixels.average()
-
-                // Call all listeners with new value
-                listeners.forEach { it(luma) }
-
-                lastAnalyzedTimestamp = frameTimestamps.first
-            }
-        }
-    }
-
     companion object {
         private const val TAG = "CameraXBasic"
         private const val FILENAME = "yyyy-MM-dd-HH-mm-ss-SSS"
         private const val PHOTO_EXTENSION = ".jpg"
+        private const val CONTINUOUS_CACHE_SIZE = 64
+        private const val CONTINUOUS_CACHE_TTL_MILLIS = 3000L
+        private const val FRAME_STATS_SAMPLE_STEP = 8
+        private const val SEARCH_LIMIT = 100
+        private const val DECODE_RESULT_CACHE_SIZE = 2000
 
         /** Use external media if it is available, our app's file directory otherwise */
         private fun getOutputDirectory(context: Context): File {
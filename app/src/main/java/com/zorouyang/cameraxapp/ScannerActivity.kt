@@ -24,8 +24,7 @@ import androidx.core.content.ContextCompat
 import com.zorouyang.cameraxapp.util.AutoFitPreviewBuilder
 import com.zorouyang.cameraxapp.util.Decoder
 import com.zorouyang.cameraxapp.util.DisplayUtils
-import java.nio.ByteBuffer
-import java.util.concurrent.TimeUnit
+import com.zorouyang.cameraxapp.util.FrameStats
 
 
 // This is an arbitrary number we are using to keep tab of the permission
@@ -155,9 +154,7 @@ class ScannerActivity : AppCompatActivity() {
         }.build()
 
         // Build the image analysis use case and instantiate our analyzer
-        imageAnalysis = ImageAnalysis(analyzerConfig)/*.apply {
-            analyzer = LuminosityAnalyzer()
-        }*/
+        imageAnalysis = ImageAnalysis(analyzerConfig)
         setAnalyzer()
 
         // Bind use cases to lifecycle
@@ -188,12 +185,16 @@ class ScannerActivity : AppCompatActivity() {
     private lateinit var imageAnalysis: ImageAnalysis
     private lateinit var decoder: Decoder
     private var dialog: Dialog? = null
+    private val frameStats = FrameStats(8)
 
     private fun setAnalyzer() {
-        imageAnalysis.setAnalyzer { image: ImageProxy, _: Int ->
-            val buffer = image.planes[0].buffer
-            val bytes = ByteArray(buffer.capacity()).also { buffer.get(it) }
-            decoder.decode(bytes, image.width, image.height)
+        imageAnalysis.setAnalyzer { image: ImageProxy, rotationDegrees: Int ->
+            // Decode the Y plane in place, no per-frame copy
+            val plane = image.planes[0]
+            decoder.decode(plane.buffer, image.width, image.height, plane.rowStride, plane.pixelStride,
+                rotationDegrees)
+            frameStats.update(plane.buffer, image.width, image.height, plane.rowStride, plane.pixelStride)
+            frameStats.logIfDue("CameraXApp")
         }
     }
 
@@ -208,42 +209,6 @@ class ScannerActivity : AppCompatActivity() {
         viewFinder.layoutParams = layoutParams
     }
 
-    private class LuminosityAnalyzer : ImageAnalysis.Analyzer {
-        private var lastAnalyzedTimestamp = 0L
-
-        /**
-         * Helper extension function used to extract a byte array from an
-         * image plane buffer
-         */
-        private fun ByteBuffer.toByteArray(): ByteArray {
-            rewind()    // Rewind the buffer to zero
-            val data = ByteArray(remaining())
-            get(data)   // Copy the buffer into a byte array
-            return data // Return the byte array
-        }
-
-        override fun analyze(image: ImageProxy, rotationDegrees: Int) {
-            val currentTimestamp = System.currentTimeMillis()
-            // Calculate the average luma no more often than every second
-            if (currentTimestamp - lastAnalyzedTimestamp >=
-                TimeUnit.SECONDS.toMillis(1)) {
-                // Since format in ImageAnalysis is YUV, image.planes[0]
-                // contains the Y (luminance) plane
-                val buffer = image.planes[0].buffer
-                // Extract image data from callback object
-                val data = buffer.toByteArray()
-                // Convert the data into an array of pixel values
-                val pixels = data.map { it.toInt() and 0xFF }
-                // Compute average luminance for the image
-                val luma = pixels.average()
-                // Log the new luma value
-                Log.d("CameraXApp", "Average luminosity: $luma")
-                // Update timestamp of last analyzed frame
-                lastAnalyzedTimestamp = currentTimestamp
-            }
-        }
-    }
-
     private fun updateTransform() {
         val matrix = Matrix()
 
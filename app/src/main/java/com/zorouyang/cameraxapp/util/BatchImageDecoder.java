@@ -0,0 +1,339 @@
+package com.zorouyang.cameraxapp.util;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.util.Size;
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.Result;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decodes a batch of gallery images on a bounded pool of worker threads, streaming every image's
+ * result back on the main thread as soon as it is known.
+ *
+ * <p>Every worker owns its own {@link Decoder}. Peak memory is bounded separately from the thread
+ * count: only {@code maxBitmaps} images are loaded and decoded at the same time, the other workers
+ * wait for a permit. A {@link Batch} can be cancelled, images not started yet are then skipped.
+ */
+public final class BatchImageDecoder {
+
+    private static final String TAG = BatchImageDecoder.class.getSimpleName();
+
+    // A scaled image is MAX_IMAGE_RESOLUTION on its shorter side, the longer one is taken as half as
+    // large again. A decode holds its RGB_565 bitmap and luminances, three bytes a pixel, and the
+    // binarizer's matrices
+    private static final long ESTIMATED_BYTES_PER_IMAGE =
+            4L * ImageDecoder.MAX_IMAGE_RESOLUTION * (ImageDecoder.MAX_IMAGE_RESOLUTION * 3 / 2);
+
+    private static final int METADATA_CACHE_SIZE = 128;
+
+    private final Context context;
+    private final ThreadPoolExecutor executor;
+    private final Semaphore bitmapPermits;
+    // Shared by the workers, it bounds the full resolution tiles in flight across the batch
+    private final RegionImageScanner regionScanner;
+    private final UriMetadataCache metadataCache;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private volatile Collection<BarcodeFormat> formats;
+    private volatile FormatCostTracker formatCostTracker;
+    private volatile String formatsKey = "";
+    private volatile DecodeResultCache resultCache;
+    private volatile boolean hashContent;
+
+    private final ThreadLocal<WorkerDecoder> decoders = new ThreadLocal<WorkerDecoder>() {
+        @Override
+        protected WorkerDecoder initialValue() {
+            return new WorkerDecoder();
+        }
+    };
+
+    public interface Listener {
+        /**
+         * Called on the main thread for every image, in the order they finish.
+         *
+         * @param index  The image's position in the batch.
+         * @param result The code found, or null if there is none or the image could not be read.
+         * @param failed Whether the image could not be read, as opposed to holding no code.
+         * @param done   How many images of the batch are finished.
+         */
+        void onImageDecoded(int index, Uri uri, Result result, boolean failed, int done, int total);
+
+        /**
+         * Called on the main thread once, after the last image or on cancellation.
+         */
+        void onBatchFinished(int found, int total, boolean cancelled);
+    }
+
+    /**
+     * @return The default number of workers: one per core, at most four.
+     */
+    public static int defaultThreadCount() {
+        return Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), 4));
+    }
+
+    /**
+     * @return How many images fit in half of the heap at the same time.
+     */
+    public static int defaultMaxBitmaps() {
+        return (int) Math.max(1, Runtime.getRuntime().maxMemory() / 2 / ESTIMATED_BYTES_PER_IMAGE);
+    }
+
+    public BatchImageDecoder(Context context, int threadCount, int maxBitmaps) {
+        this.context = context.getApplicationContext();
+        this.bitmapPermits = new Semaphore(Math.max(1, Math.min(maxBitmaps, threadCount)));
+        this.metadataCache = new UriMetadataCache(this.context.getContentResolver(), METADATA_CACHE_SIZE);
+        this.regionScanner = new RegionImageScanner(RegionImageScanner.defaultParallelism(),
+                RegionImageScanner.DEFAULT_TILE_SIZE);
+        this.executor = new ThreadPoolExecutor(threadCount, threadCount, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, "BatchDecoder-" + count.getAndIncrement());
+            }
+        });
+    }
+
+    /**
+     * Decode more formats than QR code, see {@link Decoder#setFormats}. Applies from the next image on.
+     */
+    public void setFormats(Collection<BarcodeFormat> formats, FormatCostTracker tracker) {
+        this.formatCostTracker = tracker;
+        this.formats = formats;
+        // A code cached as missing in QR code only mode may well be found with more formats
+        StringBuilder formatsKey = new StringBuilder();
+        if (formats != null) {
+            for (BarcodeFormat format : formats) {
+                formatsKey.append('|').append(format.name());
+            }
+        }
+        this.formatsKey = formatsKey.toString();
+    }
+
+    /**
+     * Queue {@code uris} for decoding.
+     *
+     * @return The batch, to cancel it.
+     */
+    public Batch decode(List<Uri> uris, Listener listener) {
+        Batch batch = new Batch(uris.size(), listener);
+        if (uris.isEmpty()) {
+            batch.finish();
+            return batch;
+        }
+        for (int i = 0; i < uris.size(); i++) {
+            batch.futures.add(executor.submit(new Task(batch, i, uris.get(i))));
+        }
+        return batch;
+    }
+
+    /**
+     * Stop the workers, batches still running are cancelled.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+        regionScanner.shutdown();
+    }
+
+    /**
+     * Answer images decoded before from {@code cache}, pass null to decode every image.
+     *
+     * @param hashContent Key the cache by the image content instead of its URI, size and
+     *                    modification time. Costs a read of the whole file per image.
+     */
+    public void setResultCache(DecodeResultCache cache, boolean hashContent) {
+        this.hashContent = hashContent;
+        this.resultCache = cache;
+    }
+
+    /**
+     * @throws IOException If the image could not be read.
+     */
+    private Result decodeImage(Uri uri) throws InterruptedException, IOException {
+        // A cache hit needs neither a bitmap permit nor the image's pixels
+        DecodeResultCache cache = resultCache;
+        String key = null;
+        if (cache != null) {
+            key = cacheKey(uri);
+            DecodeResultCache.Entry entry = key != null ? cache.get(key) : null;
+            if (entry != null) {
+                return entry.result;
+            }
+        }
+
+        Result result;
+        bitmapPermits.acquire();
+        try {
+            // Not cached when it throws, the image may be readable next time
+            result = decoders.get().getDecoder().decode(context.getContentResolver(), uri);
+        } finally {
+            bitmapPermits.release();
+        }
+        // Only a decode that ran is cached, with or without a code
+        if (key != null) {
+            cache.put(key, result);
+        }
+        return result;
+    }
+
+    /**
+     * @return The result cache key of {@code uri}, or null if a change of the image could go unnoticed.
+     */
+    private String cacheKey(Uri uri) {
+        if (!hashContent) {
+            UriMetadataCache.Metadata metadata = metadataCache.get(uri);
+            return metadata != null && metadata.isKnown()
+                    ? DecodeResultCache.key(uri, metadata.size, metadata.lastModified) + formatsKey : null;
+        }
+        try (InputStream content = context.getContentResolver().openInputStream(uri)) {
+            return content != null ? DecodeResultCache.contentKey(content) + formatsKey : null;
+        } catch (IOException | SecurityException e) {
+            Log.w(TAG, "Failed to hash " + uri, e);
+            return null;
+        }
+    }
+
+    /**
+     * The decoder of one worker, ZXing readers are not thread-safe.
+     */
+    private final class WorkerDecoder {
+        // Results are taken from the return value, the framing rect is not used for images
+        private final Decoder decoder = new Decoder(new Size(0, 0), new Decoder.OnResultListener() {
+            @Override
+            public void onResult(Result result) {
+            }
+        });
+        private Collection<BarcodeFormat> appliedFormats;
+
+        WorkerDecoder() {
+            decoder.setRegionScanner(regionScanner);
+        }
+
+        Decoder getDecoder() {
+            Collection<BarcodeFormat> current = formats;
+            if (current != appliedFormats) {
+                decoder.setFormats(current, formatCostTracker);
+                appliedFormats = current;
+            }
+            return decoder;
+        }
+    }
+
+    public final class Batch {
+        private final int total;
+        private final Listener listener;
+        private final List<Future<?>> futures = new ArrayList<>();
+        private final AtomicInteger done = new AtomicInteger();
+        private final AtomicInteger found = new AtomicInteger();
+        private final AtomicBoolean cancelled = new AtomicBoolean();
+        private final AtomicBoolean finished = new AtomicBoolean();
+
+        private Batch(int total, Listener listener) {
+            this.total = total;
+            this.listener = listener;
+        }
+
+        /**
+         * Skip the images not started yet, and stop reporting the ones still decoding.
+         */
+        public void cancel() {
+            if (!cancelled.compareAndSet(false, true)) {
+                return;
+            }
+            for (Future<?> future : futures) {
+                future.cancel(false);
+            }
+            finish();
+        }
+
+        public boolean isCancelled() {
+            return cancelled.get();
+        }
+
+        private void onImageDecoded(final int index, final Uri uri, final Result result, final boolean failed) {
+            if (result != null) {
+                found.incrementAndGet();
+            }
+            final int doneNow = done.incrementAndGet();
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!cancelled.get()) {
+                        listener.onImageDecoded(index, uri, result, failed, doneNow, total);
+                    }
+                }
+            });
+            if (doneNow == total) {
+                finish();
+            }
+        }
+
+        private void finish() {
+            if (!finished.compareAndSet(false, true)) {
+                return;
+            }
+            final int foundNow = found.get();
+            final boolean cancelledNow = cancelled.get();
+            Log.d(TAG, "Batch finished: " + foundNow + " of " + total + " images with a code"
+                    + (cancelledNow ? ", cancelled after " + done.get() : ""));
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onBatchFinished(foundNow, total, cancelledNow);
+                }
+            });
+        }
+    }
+
+    private final class Task implements Runnable {
+        private final Batch batch;
+        private final int index;
+        private final Uri uri;
+
+        Task(Batch batch, int index, Uri uri) {
+            this.batch = batch;
+            this.index = index;
+            this.uri = uri;
+        }
+
+        @Override
+        public void run() {
+            if (batch.isCancelled()) {
+                return;
+            }
+            Result result = null;
+            boolean failed = false;
+            try {
+                result = decodeImage(uri);
+            } catch (InterruptedException e) {
+                // Shut down
+                return;
+            } catch (IOException | RuntimeException e) {
+                // One unreadable image must not end the batch
+                Log.e(TAG, "Failed to decode " + uri, e);
+                failed = true;
+            }
+            if (!batch.isCancelled()) {
+                batch.onImageDecoded(index, uri, result, failed);
+            }
+        }
+    }
+}
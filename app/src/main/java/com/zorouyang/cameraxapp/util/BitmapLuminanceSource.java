@@ -3,34 +3,180 @@ package com.zorouyang.cameraxapp.util;
 import android.graphics.Bitmap;
 import com.google.zxing.LuminanceSource;
 
+/**
+ * A {@link LuminanceSource} reading a {@link Bitmap} as it is, without copying it.
+ *
+ * <p>Rows are converted on demand through one reused row buffer, with the full range BT.601
+ * weights of {@link LuminanceConverter#toLuminance}, so colored codes keep their contrast. The
+ * whole matrix is only built when a binarizer asks for it, and then kept. Crops and rotations are
+ * views on the same bitmap, which must not be recycled while a source of it is in use. Instances
+ * are not thread-safe.
+ */
 public class BitmapLuminanceSource extends LuminanceSource {
- 
-    private byte bitmapPixels[];
- 
+
+    private final Bitmap bitmap;
+    // The viewed region, in bitmap coordinates before the rotation
+    private final int left;
+    private final int top;
+    private final int regionWidth;
+    private final int regionHeight;
+    // Counterclockwise, 0, 90, 180 or 270
+    private final int rotation;
+
+    private int[] pixels;
+    private byte[] matrix;
+    private boolean matrixFilled;
+
     public BitmapLuminanceSource(Bitmap bitmap) {
-        super(bitmap.getWidth(), bitmap.getHeight());
- 
-        // 首先，要取得该图片的像素数组内容
-        int[] data = new int[bitmap.getWidth() * bitmap.getHeight()];
-        this.bitmapPixels = new byte[bitmap.getWidth() * bitmap.getHeight()];
-        bitmap.getPixels(data, 0, getWidth(), 0, 0, getWidth(), getHeight());
- 
-        // 将int数组转换为byte数组，也就是取像素值中蓝色值部分作为辨析内容
-        for (int i = 0; i < data.length; i++) {
-            this.bitmapPixels[i] = (byte) data[i];
-        }
-    }
- 
-    @Override
-    public byte[] getMatrix() {
-        // 返回我们生成好的像素数据
-        return bitmapPixels;
+        this(bitmap, null);
+    }
+
+    /**
+     * @param matrix Used for {@link #getMatrix()} if large enough, so a caller decoding many
+     *               bitmaps can reuse one buffer. May be null.
+     */
+    public BitmapLuminanceSource(Bitmap bitmap, byte[] matrix) {
+        this(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix);
+    }
+
+    /**
+     * A source of the given region of {@code bitmap} only, e.g. of a decoded region in a larger,
+     * reused bitmap.
+     */
+    public BitmapLuminanceSource(Bitmap bitmap, int left, int top, int width, int height, byte[] matrix) {
+        this(bitmap, left, top, width, height, 0, matrix);
+    }
+
+    private BitmapLuminanceSource(Bitmap bitmap, int left, int top, int regionWidth, int regionHeight,
+                                  int rotation, byte[] matrix) {
+        super(rotation % 180 == 0 ? regionWidth : regionHeight, rotation % 180 == 0 ? regionHeight : regionWidth);
+        if (left < 0 || top < 0 || left + regionWidth > bitmap.getWidth() || top + regionHeight > bitmap.getHeight()) {
+            throw new IllegalArgumentException("Crop rectangle does not fit within image data.");
+        }
+        this.bitmap = bitmap;
+        this.left = left;
+        this.top = top;
+        this.regionWidth = regionWidth;
+        this.regionHeight = regionHeight;
+        this.rotation = rotation;
+        this.matrix = matrix;
     }
- 
+
     @Override
     public byte[] getRow(int y, byte[] row) {
-        // 这里要得到指定行的像素数据
-        System.arraycopy(bitmapPixels, y * getWidth(), row, 0, getWidth());
+        if (y < 0 || y >= getHeight()) {
+            throw new IllegalArgumentException("Requested row is outside the image: " + y);
+        }
+        int width = getWidth();
+        if (row == null || row.length < width) {
+            row = new byte[width];
+        }
+        if (matrixFilled) {
+            System.arraycopy(matrix, y * width, row, 0, width);
+        } else {
+            readRow(y, row, 0);
+        }
         return row;
     }
-}
\ No newline at end of file
+
+    @Override
+    public byte[] getMatrix() {
+        int width = getWidth();
+        int height = getHeight();
+        if (!matrixFilled) {
+            if (matrix == null || matrix.length < width * height) {
+                matrix = new byte[width * height];
+            }
+            for (int y = 0; y < height; y++) {
+                readRow(y, matrix, y * width);
+            }
+            matrixFilled = true;
+        }
+        return matrix;
+    }
+
+    /**
+     * Convert row {@code y} of the view into {@code out} at {@code offset}.
+     */
+    private void readRow(int y, byte[] out, int offset) {
+        int width = getWidth();
+        if (pixels == null || pixels.length < width) {
+            pixels = new int[width];
+        }
+        boolean reversed;
+        switch (rotation) {
+            case 90:
+                // The columns of the region from the right, top to bottom
+                bitmap.getPixels(pixels, 0, 1, left + regionWidth - 1 - y, top, 1, regionHeight);
+                reversed = false;
+                break;
+            case 180:
+                bitmap.getPixels(pixels, 0, regionWidth, left, top + regionHeight - 1 - y, regionWidth, 1);
+                reversed = true;
+                break;
+            case 270:
+                // The columns of the region from the left, bottom to top
+                bitmap.getPixels(pixels, 0, 1, left + y, top, 1, regionHeight);
+                reversed = true;
+                break;
+            default:
+                bitmap.getPixels(pixels, 0, regionWidth, left, top + y, regionWidth, 1);
+                reversed = false;
+                break;
+        }
+        if (reversed) {
+            for (int i = 0, j = width - 1; i < j; i++, j--) {
+                int pixel = pixels[i];
+                pixels[i] = pixels[j];
+                pixels[j] = pixel;
+            }
+        }
+        LuminanceConverter.toLuminance(pixels, 0, out, offset, width);
+    }
+
+    @Override
+    public boolean isCropSupported() {
+        return true;
+    }
+
+    @Override
+    public LuminanceSource crop(int left, int top, int width, int height) {
+        if (left < 0 || top < 0 || left + width > getWidth() || top + height > getHeight()) {
+            throw new IllegalArgumentException("Crop rectangle does not fit within image data.");
+        }
+        // The same rectangle in region coordinates, before the rotation
+        int regionLeft;
+        int regionTop;
+        switch (rotation) {
+            case 90:
+                regionLeft = regionWidth - top - height;
+                regionTop = left;
+                break;
+            case 180:
+                regionLeft = regionWidth - left - width;
+                regionTop = regionHeight - top - height;
+                break;
+            case 270:
+                regionLeft = top;
+                regionTop = regionHeight - left - width;
+                break;
+            default:
+                regionLeft = left;
+                regionTop = top;
+                break;
+        }
+        boolean swapped = rotation % 180 != 0;
+        return new BitmapLuminanceSource(bitmap, this.left + regionLeft, this.top + regionTop,
+                swapped ? height : width, swapped ? width : height, rotation, null);
+    }
+
+    @Override
+    public boolean isRotateSupported() {
+        return true;
+    }
+
+    @Override
+    public LuminanceSource rotateCounterClockwise() {
+        return new BitmapLuminanceSource(bitmap, left, top, regionWidth, regionHeight, (rotation + 90) % 360, null);
+    }
+}
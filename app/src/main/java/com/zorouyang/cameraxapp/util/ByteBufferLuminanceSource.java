@@ -0,0 +1,109 @@
+package com.zorouyang.cameraxapp.util;
+
+import com.google.zxing.LuminanceSource;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link LuminanceSource} that reads straight from the Y plane {@link ByteBuffer} of an
+ * {@code ImageProxy}, honouring the plane's row stride and pixel stride, so the frame never
+ * has to be copied into a {@code byte[]} before decoding.
+ *
+ * <p>Instances are confined to the thread that decodes the frame, and must not outlive the
+ * image the buffer belongs to.
+ */
+public final class ByteBufferLuminanceSource extends LuminanceSource {
+
+    private final ByteBuffer buffer;
+    private final int rowStride;
+    private final int pixelStride;
+    private final int left;
+    private final int top;
+
+    private byte[] matrix;
+
+    /**
+     * @param buffer      Y plane buffer, indexed absolutely from 0.
+     * @param rowStride   Bytes between the start of two rows.
+     * @param pixelStride Bytes between two horizontally adjacent pixels.
+     * @param left        Crop left in frame coordinates.
+     * @param top         Crop top in frame coordinates.
+     * @param width       Crop width.
+     * @param height      Crop height.
+     * @param matrix      Optional reusable buffer for {@link #getMatrix()}, may be null.
+     */
+    public ByteBufferLuminanceSource(ByteBuffer buffer, int rowStride, int pixelStride,
+                                     int left, int top, int width, int height, byte[] matrix) {
+        super(width, height);
+        if ((left + width - 1) * pixelStride >= rowStride) {
+            throw new IllegalArgumentException("Crop rectangle does not fit within row stride.");
+        }
+        // Duplicate so the bulk reads below never disturb the caller's position and limit
+        this.buffer = buffer.duplicate();
+        this.rowStride = rowStride;
+        this.pixelStride = pixelStride;
+        this.left = left;
+        this.top = top;
+        this.matrix = matrix;
+    }
+
+    @Override
+    public byte[] getRow(int y, byte[] row) {
+        if (y < 0 || y >= getHeight()) {
+            throw new IllegalArgumentException("Requested row is outside the image: " + y);
+        }
+        int width = getWidth();
+        if (row == null || row.length < width) {
+            row = new byte[width];
+        }
+        readRow(y, row, 0);
+        return row;
+    }
+
+    @Override
+    public byte[] getMatrix() {
+        int width = getWidth();
+        int height = getHeight();
+        int area = width * height;
+        if (matrix == null || matrix.length < area) {
+            matrix = new byte[area];
+        }
+        for (int y = 0; y < height; y++) {
+            readRow(y, matrix, y * width);
+        }
+        return matrix;
+    }
+
+    private void readRow(int y, byte[] dst, int offset) {
+        int width = getWidth();
+        int index = (top + y) * rowStride + left * pixelStride;
+        if (pixelStride == 1) {
+            buffer.position(index);
+            buffer.get(dst, offset, width);
+        } else {
+            for (int x = 0; x < width; x++, index += pixelStride) {
+                dst[offset + x] = buffer.get(index);
+            }
+        }
+    }
+
+    @Override
+    public boolean isCropSupported() {
+        return true;
+    }
+
+    @Override
+    public LuminanceSource crop(int left, int top, int width, int height) {
+        // A cropped source gets its own matrix so it can be decoded on another thread
+        return crop(left, top, width, height, null);
+    }
+
+    /**
+     * Like {@link #crop(int, int, int, int)}, with a reusable buffer for the cropped source's
+     * {@link #getMatrix()}, may be null.
+     */
+    public ByteBufferLuminanceSource crop(int left, int top, int width, int height, byte[] matrix) {
+        return new ByteBufferLuminanceSource(buffer, rowStride, pixelStride,
+                this.left + left, this.top + top, width, height, matrix);
+    }
+}
@@ -0,0 +1,213 @@
+package com.zorouyang.cameraxapp.util;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.LongSparseArray;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A local SQLite index of the codes found in the gallery images, see {@link MediaStoreIndexer}.
+ *
+ * <p>Every indexed image has a row keyed by its MediaStore {@code _ID}, with the
+ * {@code DATE_MODIFIED} it was decoded at, so an image is decoded again only when it changed. An
+ * image without a code keeps a row with a null text, so it is not decoded again either; one that
+ * could not be read gets no row. The decoded texts are mirrored into a full text search table,
+ * searching them doesn't scan the index.
+ */
+public final class CodeIndex extends SQLiteOpenHelper {
+
+    private static final String DATABASE_NAME = "code_index.db";
+    private static final int DATABASE_VERSION = 1;
+
+    private static final String TABLE_CODES = "codes";
+    private static final String TABLE_SEARCH = "codes_search";
+    private static final String COLUMN_ID = "_id";
+    private static final String COLUMN_DATE_MODIFIED = "date_modified";
+    private static final String COLUMN_PATH = "path";
+    private static final String COLUMN_FORMAT = "format";
+    private static final String COLUMN_TEXT = "text";
+
+    public static final class Entry {
+        public final long id;
+        public final long dateModified;
+        public final String path;
+        /**
+         * The barcode format name, null if the image has no code.
+         */
+        public final String format;
+        /**
+         * The decoded text, null if the image has no code.
+         */
+        public final String text;
+
+        public Entry(long id, long dateModified, String path, String format, String text) {
+            this.id = id;
+            this.dateModified = dateModified;
+            this.path = path;
+            this.format = format;
+            this.text = text;
+        }
+    }
+
+    public CodeIndex(Context context) {
+        super(context.getApplicationContext(), DATABASE_NAME, null, DATABASE_VERSION);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_CODES + " ("
+                + COLUMN_ID + " INTEGER PRIMARY KEY, "
+                + COLUMN_DATE_MODIFIED + " INTEGER NOT NULL, "
+                + COLUMN_PATH + " TEXT, "
+                + COLUMN_FORMAT + " TEXT, "
+                + COLUMN_TEXT + " TEXT)");
+        // The docid of a search row is the _id of its image
+        db.execSQL("CREATE VIRTUAL TABLE " + TABLE_SEARCH + " USING fts4(" + COLUMN_TEXT + ")");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_CODES);
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_SEARCH);
+        onCreate(db);
+    }
+
+    /**
+     * @return The {@code DATE_MODIFIED} of the indexed images with {@code afterId < _ID <= lastId}, by {@code _ID}.
+     */
+    public LongSparseArray<Long> getDateModified(long afterId, long lastId) {
+        LongSparseArray<Long> dates = new LongSparseArray<>();
+        Cursor cursor = getReadableDatabase().query(TABLE_CODES, new String[]{COLUMN_ID, COLUMN_DATE_MODIFIED},
+                COLUMN_ID + ">? AND " + COLUMN_ID + "<=?",
+                new String[]{String.valueOf(afterId), String.valueOf(lastId)}, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                dates.put(cursor.getLong(0), cursor.getLong(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        return dates;
+    }
+
+    /**
+     * Store a page of the MediaStore walk in one transaction: images of the range no longer in
+     * the MediaStore are dropped, {@code entries} are added or replaced.
+     *
+     * @param afterId The {@code _ID} the page started after.
+     * @param ids     The {@code _ID}s of the page, ascending, all images of the range still present.
+     * @param count   How many of {@code ids} are used.
+     * @param entries The images of the page that were decoded.
+     */
+    public void writePage(long afterId, long[] ids, int count, List<Entry> entries) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            if (count > 0) {
+                StringBuilder present = new StringBuilder();
+                for (int i = 0; i < count; i++) {
+                    if (i > 0) {
+                        present.append(',');
+                    }
+                    present.append(ids[i]);
+                }
+                db.delete(TABLE_CODES, removedFromRange(COLUMN_ID, afterId, ids[count - 1], present), null);
+                db.delete(TABLE_SEARCH, removedFromRange("docid", afterId, ids[count - 1], present), null);
+            }
+
+            ContentValues values = new ContentValues();
+            ContentValues searchValues = new ContentValues();
+            for (Entry entry : entries) {
+                values.clear();
+                values.put(COLUMN_ID, entry.id);
+                values.put(COLUMN_DATE_MODIFIED, entry.dateModified);
+                values.put(COLUMN_PATH, entry.path);
+                values.put(COLUMN_FORMAT, entry.format);
+                values.put(COLUMN_TEXT, entry.text);
+                db.insertWithOnConflict(TABLE_CODES, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+
+                db.delete(TABLE_SEARCH, "docid=" + entry.id, null);
+                if (entry.text != null) {
+                    searchValues.clear();
+                    searchValues.put("docid", entry.id);
+                    searchValues.put(COLUMN_TEXT, entry.text);
+                    db.insert(TABLE_SEARCH, null, searchValues);
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private static String removedFromRange(String column, long afterId, long lastId, CharSequence present) {
+        return column + ">" + afterId + " AND " + column + "<=" + lastId + " AND " + column + " NOT IN (" + present + ")";
+    }
+
+    /**
+     * Drop the images after the last one of the MediaStore walk, they were deleted.
+     */
+    public void deleteAfter(long lastId) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            db.delete(TABLE_CODES, COLUMN_ID + ">" + lastId, null);
+            db.delete(TABLE_SEARCH, "docid>" + lastId, null);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Find the images whose code contains every word of {@code query}, words may be prefixes.
+     *
+     * @return The matching images, most recently modified first.
+     */
+    public List<Entry> search(String query, int limit) {
+        List<Entry> entries = new ArrayList<>();
+        // Only lower case letters and digits are kept, so the user's input can't be taken for FTS operators
+        StringBuilder match = new StringBuilder();
+        for (String word : query.split("[^\\p{L}\\p{N}]+")) {
+            if (!word.isEmpty()) {
+                match.append(word.toLowerCase(Locale.ROOT)).append("* ");
+            }
+        }
+        if (match.length() == 0) {
+            return entries;
+        }
+
+        Cursor cursor = getReadableDatabase().rawQuery("SELECT c." + COLUMN_ID + ", c." + COLUMN_DATE_MODIFIED
+                        + ", c." + COLUMN_PATH + ", c." + COLUMN_FORMAT + ", c." + COLUMN_TEXT
+                        + " FROM " + TABLE_SEARCH + " s JOIN " + TABLE_CODES + " c ON c." + COLUMN_ID + "=s.docid"
+                        + " WHERE " + TABLE_SEARCH + " MATCH ? ORDER BY c." + COLUMN_DATE_MODIFIED + " DESC LIMIT " + limit,
+                new String[]{match.toString().trim()});
+        try {
+            while (cursor.moveToNext()) {
+                entries.add(new Entry(cursor.getLong(0), cursor.getLong(1), cursor.getString(2),
+                        cursor.getString(3), cursor.getString(4)));
+            }
+        } finally {
+            cursor.close();
+        }
+        return entries;
+    }
+
+    /**
+     * @return How many images are indexed, with or without a code.
+     */
+    public long getImageCount() {
+        Cursor cursor = getReadableDatabase().rawQuery("SELECT COUNT(*) FROM " + TABLE_CODES, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+}
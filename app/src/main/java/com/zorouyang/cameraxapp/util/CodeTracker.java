@@ -0,0 +1,132 @@
+package com.zorouyang.cameraxapp.util;
+
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.os.SystemClock;
+import com.google.zxing.ResultPoint;
+
+/**
+ * Follows a located code from frame to frame, so the next frame only needs a small region of
+ * interest decoded instead of the framing rect or the whole frame.
+ *
+ * <p>The code's centre moves with constant velocity between sightings. The predicted box is the
+ * last code box padded by {@link #BASE_PADDING}, and widened by {@link #PADDING_STEP} for every
+ * frame the code was missed, with its side rounded up to a multiple of {@link #SIZE_STEP}. After
+ * {@link #MAX_MISSES} misses in a row, or when it has not been seen for {@link #STALE_MILLIS}, the
+ * code is lost and {@link #predict(int, int)} returns null. Thread-safe, one tracker may serve
+ * several decoders.
+ */
+public final class CodeTracker {
+
+    private static final float BASE_PADDING = 2f;
+    private static final float PADDING_STEP = 1f;
+    private static final int MAX_MISSES = 3;
+    private static final long STALE_MILLIS = 500;
+    // Keeps the region big enough for the binarizer even for tiny or flat (1D) codes
+    private static final int MIN_SIZE = 200;
+    private static final int SIZE_STEP = 64;
+
+    private boolean tracking;
+    private float centerX;
+    private float centerY;
+    private float velocityX;
+    private float velocityY;
+    private float size;
+    private long lastSeen;
+    private int misses;
+
+    private long predictions;
+    private long trackedHits;
+
+    /**
+     * @return The region of interest for the next frame in frame coordinates, or null when no code
+     * is being tracked.
+     */
+    public synchronized Rect predict(int frameWidth, int frameHeight) {
+        if (!tracking) {
+            return null;
+        }
+        long elapsed = SystemClock.elapsedRealtime() - lastSeen;
+        if (elapsed > STALE_MILLIS) {
+            // The scan was paused, or the camera moved on
+            lose();
+            return null;
+        }
+        predictions++;
+
+        float x = centerX + velocityX * elapsed;
+        float y = centerY + velocityY * elapsed;
+        float half = Math.max(size * (BASE_PADDING + PADDING_STEP * misses), MIN_SIZE) / 2;
+        if (x + half <= 0 || y + half <= 0 || x - half >= frameWidth || y - half >= frameHeight) {
+            lose();
+            return null;
+        }
+
+        // Rounded up to a size step and moved inside the frame rather than clipped, so successive
+        // regions have the same size and the binarizer can reuse its matrix
+        int side = (int) Math.ceil(half * 2 / SIZE_STEP) * SIZE_STEP;
+        int width = Math.min(side, frameWidth);
+        int height = Math.min(side, frameHeight);
+        int left = clamp(Math.round(x) - width / 2, 0, frameWidth - width);
+        int top = clamp(Math.round(y) - height / 2, 0, frameHeight - height);
+        return new Rect(left, top, left + width, top + height);
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return value < min ? min : value > max ? max : value;
+    }
+
+    /**
+     * Record where the code was found.
+     *
+     * @param points The result points, in frame coordinates.
+     */
+    public synchronized void onFound(ResultPoint[] points) {
+        RectF box = SpatialDeduplicator.boundingBox(points);
+        if (box == null) {
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        if (tracking && now > lastSeen) {
+            velocityX = (box.centerX() - centerX) / (now - lastSeen);
+            velocityY = (box.centerY() - centerY) / (now - lastSeen);
+        } else {
+            velocityX = 0;
+            velocityY = 0;
+        }
+        if (tracking) {
+            trackedHits++;
+        }
+
+        centerX = box.centerX();
+        centerY = box.centerY();
+        size = Math.max(box.width(), box.height());
+        lastSeen = now;
+        misses = 0;
+        tracking = true;
+    }
+
+    /**
+     * Record a frame whose predicted region held no code.
+     */
+    public synchronized void onMissed() {
+        if (tracking && ++misses > MAX_MISSES) {
+            lose();
+        }
+    }
+
+    public synchronized boolean isTracking() {
+        return tracking;
+    }
+
+    private void lose() {
+        tracking = false;
+        misses = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "CodeTracker{tracking=" + tracking + ", predictions=" + predictions
+                + ", trackedHits=" + trackedHits + "}";
+    }
+}
@@ -0,0 +1,27 @@
+package com.zorouyang.cameraxapp.util;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * The one {@link ForkJoinPool} all parallel decode work is split onto: frame tiles, gallery tiles
+ * and scales, and luminance conversion.
+ *
+ * <p>The decode workers and batch threads hand their splits to this pool and wait for them, so
+ * however many features decode at once, no more threads than cores compute. The pool is never shut
+ * down, its threads are daemons and idle ones time out. Users that are shut down stop handing work
+ * to it instead.
+ */
+public final class DecodePool {
+
+    private static ForkJoinPool sPool;
+
+    private DecodePool() {
+    }
+
+    public static synchronized ForkJoinPool get() {
+        if (sPool == null) {
+            sPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        }
+        return sPool;
+    }
+}
@@ -0,0 +1,248 @@
+package com.zorouyang.cameraxapp.util;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.net.Uri;
+import android.util.LruCache;
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.Result;
+import com.google.zxing.ResultPoint;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A persistent cache of gallery decode results, so an image decoded before is answered without
+ * loading it again.
+ *
+ * <p>Entries are keyed by the image's URI, size and modification time, or by a hash of its content
+ * when the modification time can't be trusted, see {@link #key(Uri, long, long)} and
+ * {@link #contentKey(InputStream)}. The text, format and points of a result are stored, and so is
+ * the absence of a code. Recent entries are held in memory in front of an SQLite table, which is
+ * kept to {@code maxEntries} by evicting the least recently used ones. Hits in memory are written
+ * back to the table too, at most once a minute for an entry, so the order of eviction is right to
+ * the minute. Thread-safe.
+ */
+public final class DecodeResultCache extends SQLiteOpenHelper {
+
+    private static final String DATABASE_NAME = "decode_results.db";
+    private static final int DATABASE_VERSION = 1;
+
+    private static final String TABLE_RESULTS = "results";
+    private static final String COLUMN_KEY = "key";
+    private static final String COLUMN_TEXT = "text";
+    private static final String COLUMN_FORMAT = "format";
+    private static final String COLUMN_POINTS = "points";
+    private static final String COLUMN_LAST_ACCESS = "last_access";
+
+    private static final int MEMORY_ENTRIES = 256;
+    // Evicting a tenth at a time, instead of one row per insert once full
+    private static final float EVICT_SHARE = 0.1f;
+    // Repeated hits on an entry in memory write its access time once per this
+    private static final long ACCESS_RESOLUTION_MILLIS = 60 * 1000;
+
+    private final int maxEntries;
+    private final LruCache<String, Entry> memory = new LruCache<>(MEMORY_ENTRIES);
+    // An upper bound, a replaced row is counted as new until the next recount
+    private long rowCount = -1;
+
+    private final AtomicLong memoryHits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * A cached decode, {@link #result} is null if the image has no code.
+     */
+    public static final class Entry {
+        public final Result result;
+        // The last access time written to the table
+        volatile long lastAccess;
+
+        Entry(Result result, long lastAccess) {
+            this.result = result;
+            this.lastAccess = lastAccess;
+        }
+    }
+
+    public DecodeResultCache(Context context, int maxEntries) {
+        super(context.getApplicationContext(), DATABASE_NAME, null, DATABASE_VERSION);
+        this.maxEntries = maxEntries;
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_RESULTS + " ("
+                + COLUMN_KEY + " TEXT PRIMARY KEY, "
+                + COLUMN_TEXT + " TEXT, "
+                + COLUMN_FORMAT + " TEXT, "
+                + COLUMN_POINTS + " TEXT, "
+                + COLUMN_LAST_ACCESS + " INTEGER NOT NULL)");
+        db.execSQL("CREATE INDEX " + TABLE_RESULTS + "_" + COLUMN_LAST_ACCESS
+                + " ON " + TABLE_RESULTS + "(" + COLUMN_LAST_ACCESS + ")");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_RESULTS);
+        onCreate(db);
+    }
+
+    /**
+     * @return The key of an image whose size or modification time changes with its content.
+     */
+    public static String key(Uri uri, long size, long lastModified) {
+        return uri + "|" + size + "|" + lastModified;
+    }
+
+    /**
+     * @return The key of an image by its content, the same image under another URI hits too.
+     * @throws IOException If the content can't be read.
+     */
+    public static String contentKey(InputStream content) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] buffer = new byte[64 * 1024];
+        int read;
+        while ((read = content.read(buffer)) != -1) {
+            digest.update(buffer, 0, read);
+        }
+        StringBuilder key = new StringBuilder("sha256:");
+        for (byte b : digest.digest()) {
+            key.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return key.toString();
+    }
+
+    /**
+     * @return The cached decode, or null if the image was not decoded before.
+     */
+    public Entry get(String key) {
+        Entry entry = memory.get(key);
+        if (entry != null) {
+            memoryHits.incrementAndGet();
+            long now = System.currentTimeMillis();
+            if (now - entry.lastAccess >= ACCESS_RESOLUTION_MILLIS) {
+                entry.lastAccess = now;
+                touch(getWritableDatabase(), key, now);
+            }
+            return entry;
+        }
+
+        SQLiteDatabase db = getWritableDatabase();
+        Cursor cursor = db.query(TABLE_RESULTS, new String[]{COLUMN_TEXT, COLUMN_FORMAT, COLUMN_POINTS},
+                COLUMN_KEY + "=?", new String[]{key}, null, null, null);
+        try {
+            if (!cursor.moveToFirst()) {
+                misses.incrementAndGet();
+                return null;
+            }
+            String text = cursor.getString(0);
+            entry = new Entry(text == null ? null : new Result(text, null,
+                    parsePoints(cursor.getString(2)), BarcodeFormat.valueOf(cursor.getString(1))),
+                    System.currentTimeMillis());
+        } finally {
+            cursor.close();
+        }
+        diskHits.incrementAndGet();
+        memory.put(key, entry);
+        touch(db, key, entry.lastAccess);
+        return entry;
+    }
+
+    private static void touch(SQLiteDatabase db, String key, long now) {
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_LAST_ACCESS, now);
+        db.update(TABLE_RESULTS, values, COLUMN_KEY + "=?", new String[]{key});
+    }
+
+    /**
+     * Remember the decode of an image.
+     *
+     * @param result The code found, or null if there is none.
+     */
+    public void put(String key, Result result) {
+        Entry entry = new Entry(result, System.currentTimeMillis());
+        memory.put(key, entry);
+
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_KEY, key);
+        if (result != null) {
+            values.put(COLUMN_TEXT, result.getText());
+            values.put(COLUMN_FORMAT, result.getBarcodeFormat().name());
+            values.put(COLUMN_POINTS, formatPoints(result.getResultPoints()));
+        }
+        values.put(COLUMN_LAST_ACCESS, entry.lastAccess);
+
+        SQLiteDatabase db = getWritableDatabase();
+        synchronized (this) {
+            if (rowCount < 0) {
+                rowCount = countRows(db);
+            }
+            if (db.insertWithOnConflict(TABLE_RESULTS, null, values, SQLiteDatabase.CONFLICT_REPLACE) != -1) {
+                rowCount++;
+            }
+            if (rowCount > maxEntries && (rowCount = countRows(db)) > maxEntries) {
+                int evict = Math.max(1, (int) (maxEntries * EVICT_SHARE));
+                db.delete(TABLE_RESULTS, COLUMN_KEY + " IN (SELECT " + COLUMN_KEY + " FROM " + TABLE_RESULTS
+                        + " ORDER BY " + COLUMN_LAST_ACCESS + " LIMIT " + evict + ")", null);
+                rowCount = countRows(db);
+            }
+        }
+    }
+
+    private static long countRows(SQLiteDatabase db) {
+        Cursor cursor = db.rawQuery("SELECT COUNT(*) FROM " + TABLE_RESULTS, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static String formatPoints(ResultPoint[] points) {
+        if (points == null) {
+            return null;
+        }
+        StringBuilder text = new StringBuilder();
+        for (ResultPoint point : points) {
+            if (point == null) {
+                continue;
+            }
+            if (text.length() > 0) {
+                text.append(';');
+            }
+            text.append(point.getX()).append(',').append(point.getY());
+        }
+        return text.toString();
+    }
+
+    private static ResultPoint[] parsePoints(String text) {
+        if (text == null || text.isEmpty()) {
+            return null;
+        }
+        String[] pairs = text.split(";");
+        ResultPoint[] points = new ResultPoint[pairs.length];
+        for (int i = 0; i < pairs.length; i++) {
+            int comma = pairs[i].indexOf(',');
+            points[i] = new ResultPoint(Float.parseFloat(pairs[i].substring(0, comma)),
+                    Float.parseFloat(pairs[i].substring(comma + 1)));
+        }
+        return points;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "DecodeResultCache{memoryHits=" + memoryHits.get() + ", diskHits=" + diskHits.get()
+                + ", misses=" + misses.get() + ", rows=" + rowCount + "}";
+    }
+}
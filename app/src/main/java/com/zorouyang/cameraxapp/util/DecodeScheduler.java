@@ -0,0 +1,407 @@
+package com.zorouyang.cameraxapp.util;
+
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.Size;
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.Result;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Hands live frames to a pool of decode workers, so a slow decode no longer holds up the frames
+ * behind it.
+ *
+ * <p>Every worker owns its own {@link Decoder}, and with it its own {@code QRCodeReader} and hints,
+ * as ZXing readers are not thread-safe. A frame is only copied out of its image when a worker is
+ * idle to take it, frames arriving while every worker is busy are dropped without a copy. The
+ * first result found completes the scan, results from the other workers are dropped until
+ * {@link #rearm()} is called. In continuous mode the scan never completes, see
+ * {@link #setContinuous(ResultCache)}.
+ */
+public final class DecodeScheduler {
+
+    private static final String TAG = DecodeScheduler.class.getSimpleName();
+
+    private final Decoder.OnResultListener onResultListener;
+    private final Worker[] workers;
+    private final TiledFrameScanner tiledScanner;
+
+    private final Object lock = new Object();
+    private Frame pendingFrame;
+    // Workers waiting in takeFrame(), a pending frame is always one of theirs
+    private int idleWorkers;
+    private boolean running = true;
+
+    private final AtomicBoolean completed = new AtomicBoolean(false);
+    private volatile ResolutionController resolutionController;
+    // Set in continuous mode
+    private volatile ResultCache resultCache;
+    private volatile FrameQualityFilter frameFilter;
+    private long armedAt;
+
+    private long submittedFrames;
+    private long droppedFrames;
+    private long decodedFrames;
+    private long firstDecodeAt;
+    private long lastTimeToFirstResult = -1;
+
+    private static final class Frame {
+        final byte[] data;
+        final int width;
+        final int height;
+        final int rotationDegrees;
+
+        Frame(byte[] data, int width, int height, int rotationDegrees) {
+            this.data = data;
+            this.width = width;
+            this.height = height;
+            this.rotationDegrees = rotationDegrees;
+        }
+    }
+
+    /**
+     * @return The default number of workers: all cores but the one feeding frames, capped to keep
+     * the per-worker frame and matrix buffers affordable.
+     */
+    public static int defaultWorkerCount() {
+        return Math.max(1, Math.min(Runtime.getRuntime().availableProcessors() - 1, 4));
+    }
+
+    public DecodeScheduler(int workerCount, Size resolution, Decoder.OnResultListener onResultListener) {
+        this.onResultListener = onResultListener;
+        this.workers = new Worker[workerCount];
+        this.armedAt = SystemClock.elapsedRealtime();
+
+        Decoder.OnResultListener workerListener = new Decoder.OnResultListener() {
+            @Override
+            public void onResult(Result result) {
+                deliver(result);
+            }
+        };
+        // The workers learn which attempts pay off from the same session
+        DecodeStrategy strategy = new DecodeStrategy();
+        // Consecutive frames go to different workers, so they follow the code together
+        CodeTracker tracker = new CodeTracker();
+        // Full frame attempts are spread over all cores, a small code may be anywhere in the frame
+        tiledScanner = new TiledFrameScanner();
+        for (int i = 0; i < workerCount; i++) {
+            Decoder decoder = new Decoder(resolution, workerListener);
+            decoder.setStrategy(strategy);
+            decoder.setTracker(tracker);
+            decoder.setTiledScanner(tiledScanner);
+            workers[i] = new Worker("DecodeWorker-" + i, decoder);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Hand a frame to an idle worker. The Y plane is copied into a pooled buffer, so the image can
+     * be closed as soon as this returns. If every worker is busy the frame is dropped before it is
+     * copied, the next frame goes to the first worker done.
+     *
+     * @param rotationDegrees The rotation passed to the analyzer, to map the framing rect into the frame.
+     */
+    public void submit(ByteBuffer buffer, int width, int height, int rowStride, int pixelStride, int rotationDegrees) {
+        if (completed.get()) {
+            return;
+        }
+        // Blurred or flat frames are dropped before they cost a copy or a decode
+        FrameQualityFilter filter = frameFilter;
+        if (filter != null && !filter.accept(buffer, width, height, rowStride, pixelStride)) {
+            return;
+        }
+        synchronized (lock) {
+            if (!running) {
+                return;
+            }
+            if (idleWorkers == 0) {
+                // It would only wait to be replaced by a newer frame
+                submittedFrames++;
+                droppedFrames++;
+                return;
+            }
+        }
+        // Copied outside the lock, only submit() hands frames to the idle workers
+        Frame frame = new Frame(Decoder.copyFrame(buffer, width, height, rowStride, pixelStride),
+                width, height, rotationDegrees);
+
+        Frame dropped;
+        synchronized (lock) {
+            if (!running) {
+                Decoder.releaseFrame(frame.data);
+                return;
+            }
+            // Only set if the worker it was handed to has not woken up yet
+            dropped = pendingFrame;
+            pendingFrame = frame;
+            submittedFrames++;
+            if (dropped != null) {
+                droppedFrames++;
+            }
+            lock.notify();
+        }
+        if (dropped != null) {
+            Decoder.releaseFrame(dropped.data);
+        }
+    }
+
+    /**
+     * Accept results again after one has been delivered.
+     */
+    public void rearm() {
+        synchronized (lock) {
+            armedAt = SystemClock.elapsedRealtime();
+        }
+        completed.set(false);
+    }
+
+    /**
+     * Stop all workers. Frames still waiting are released.
+     */
+    public void shutdown() {
+        Frame dropped;
+        synchronized (lock) {
+            running = false;
+            dropped = pendingFrame;
+            pendingFrame = null;
+            lock.notifyAll();
+        }
+        if (dropped != null) {
+            Decoder.releaseFrame(dropped.data);
+        }
+        for (Worker worker : workers) {
+            worker.interrupt();
+        }
+        tiledScanner.shutdown();
+    }
+
+    /**
+     * Skip frames {@code filter} rejects, pass null to decode every frame.
+     */
+    public void setFrameFilter(FrameQualityFilter filter) {
+        frameFilter = filter;
+    }
+
+    /**
+     * Decode full frame attempts as parallel tiles, or on the worker alone, see
+     * {@link Decoder#setTiledScanner}.
+     */
+    public void setTiledScanning(boolean enabled) {
+        for (Worker worker : workers) {
+            worker.decoder.setTiledScanner(enabled ? tiledScanner : null);
+        }
+    }
+
+    /**
+     * Report the latency and outcome of every decoded frame to {@code controller}.
+     */
+    public void setResolutionController(ResolutionController controller) {
+        resolutionController = controller;
+    }
+
+    /**
+     * Switch every worker to decoding {@code formats}, see {@link Decoder#setFormats}.
+     *
+     * @return The tracker the workers report their per-format cost to.
+     */
+    public FormatCostTracker setFormats(Collection<BarcodeFormat> formats) {
+        FormatCostTracker tracker = new FormatCostTracker();
+        for (Worker worker : workers) {
+            worker.decoder.setFormats(formats, tracker);
+        }
+        return tracker;
+    }
+
+    /**
+     * Switch every worker to multiple result mode, see {@link Decoder#setOnMultipleResultListener}.
+     * The first frame with any code wins, like in single result mode. Pass null to go back.
+     */
+    public void setOnMultipleResultListener(final Decoder.OnMultipleResultListener listener) {
+        Decoder.OnMultipleResultListener workerListener = null;
+        if (listener != null) {
+            workerListener = new Decoder.OnMultipleResultListener() {
+                @Override
+                public void onResults(List<Result> results) {
+                    ResultCache cache = resultCache;
+                    if (cache != null) {
+                        List<Result> fresh = new ArrayList<>(results.size());
+                        for (Result result : results) {
+                            if (cache.offer(result)) {
+                                fresh.add(result);
+                            }
+                        }
+                        if (!fresh.isEmpty()) {
+                            listener.onResults(fresh);
+                        }
+                    } else if (complete()) {
+                        listener.onResults(results);
+                    }
+                }
+            };
+        }
+        for (Worker worker : workers) {
+            worker.decoder.setOnMultipleResultListener(workerListener);
+        }
+    }
+
+    /**
+     * @return The worker decoders, e.g. to share a configuration between them.
+     */
+    public Decoder[] getDecoders() {
+        Decoder[] decoders = new Decoder[workers.length];
+        for (int i = 0; i < workers.length; i++) {
+            decoders[i] = workers[i].decoder;
+        }
+        return decoders;
+    }
+
+    private void deliver(Result result) {
+        ResultCache cache = resultCache;
+        if (cache != null ? cache.offer(result) : complete()) {
+            onResultListener.onResult(result);
+        }
+    }
+
+    /**
+     * In continuous mode the scan never completes, every code is reported once through
+     * {@code cache} for as long as it stays in view. Pass null to go back to first-result-wins.
+     */
+    public void setContinuous(ResultCache cache) {
+        resultCache = cache;
+        if (cache != null) {
+            rearm();
+        }
+    }
+
+    /**
+     * @return Whether the caller found the first result and should deliver it.
+     */
+    private boolean complete() {
+        // First result wins, the others are stale by the time they get here
+        if (!completed.compareAndSet(false, true)) {
+            return false;
+        }
+        synchronized (lock) {
+            lastTimeToFirstResult = SystemClock.elapsedRealtime() - armedAt;
+        }
+        Log.d(TAG, "Time to first result: " + lastTimeToFirstResult + " ms, " + this);
+        return true;
+    }
+
+    private Frame takeFrame() throws InterruptedException {
+        synchronized (lock) {
+            idleWorkers++;
+            try {
+                while (running && pendingFrame == null) {
+                    lock.wait();
+                }
+            } finally {
+                idleWorkers--;
+            }
+            Frame frame = pendingFrame;
+            pendingFrame = null;
+            return frame;
+        }
+    }
+
+    private void onFrameDecoded() {
+        synchronized (lock) {
+            if (decodedFrames++ == 0) {
+                firstDecodeAt = SystemClock.elapsedRealtime();
+            }
+        }
+    }
+
+    /**
+     * @return Frames decoded per second since the first decode.
+     */
+    public double getDecodesPerSecond() {
+        synchronized (lock) {
+            long elapsed = SystemClock.elapsedRealtime() - firstDecodeAt;
+            return decodedFrames < 2 || elapsed <= 0 ? 0 : (decodedFrames - 1) * 1000.0 / elapsed;
+        }
+    }
+
+    /**
+     * @return Milliseconds from arming to the last delivered result, or -1 if none was delivered.
+     */
+    public long getTimeToFirstResult() {
+        synchronized (lock) {
+            return lastTimeToFirstResult;
+        }
+    }
+
+    public long getDroppedFrames() {
+        synchronized (lock) {
+            return droppedFrames;
+        }
+    }
+
+    /**
+     * @return How many frames the workers decoded in full after the framing rect came up empty,
+     * see {@link Decoder#getFullFrameFallbacks()}.
+     */
+    public int getFullFrameFallbacks() {
+        int fallbacks = 0;
+        for (Worker worker : workers) {
+            fallbacks += worker.decoder.getFullFrameFallbacks();
+        }
+        return fallbacks;
+    }
+
+    @Override
+    public String toString() {
+        synchronized (lock) {
+            return "DecodeScheduler{workers=" + workers.length + ", submitted=" + submittedFrames
+                    + ", dropped=" + droppedFrames + ", decoded=" + decodedFrames
+                    + ", fullFrameFallbacks=" + getFullFrameFallbacks()
+                    + ", decodesPerSecond=" + String.format(Locale.US, "%.1f", getDecodesPerSecond())
+                    + ", timeToFirstResult=" + lastTimeToFirstResult + "ms}";
+        }
+    }
+
+    private final class Worker extends Thread {
+        private final Decoder decoder;
+
+        Worker(String name, Decoder decoder) {
+            super(name);
+            this.decoder = decoder;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Frame frame;
+                try {
+                    frame = takeFrame();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (frame == null) {
+                    return;
+                }
+                try {
+                    if (!completed.get()) {
+                        long start = System.nanoTime();
+                        Result result = decoder.decode(ByteBuffer.wrap(frame.data), frame.width, frame.height,
+                                frame.width, 1, frame.rotationDegrees);
+                        onFrameDecoded();
+
+                        ResolutionController controller = resolutionController;
+                        if (controller != null) {
+                            controller.onFrameDecoded(System.nanoTime() - start, result != null);
+                        }
+                    }
+                } finally {
+                    Decoder.releaseFrame(frame.data);
+                }
+            }
+        }
+    }
+}
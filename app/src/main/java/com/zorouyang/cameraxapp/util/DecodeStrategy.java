@@ -0,0 +1,126 @@
+package com.zorouyang.cameraxapp.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Decides which decode attempts a live frame gets, and in which order.
+ *
+ * <p>Every attempt kind keeps a session-wide tally of tries and hits. Attempts are ordered by
+ * their hit rate, and kinds that have never hit after {@link #PRUNE_AFTER_TRIES} tries are skipped,
+ * apart from one exploring frame every {@link #EXPLORE_INTERVAL} frames. A frame also stops
+ * getting attempts once its time budget is spent. One instance may be shared by decoders on
+ * different threads.
+ */
+public final class DecodeStrategy {
+
+    public static final long DEFAULT_FRAME_BUDGET_MS = 150;
+
+    private static final int PRUNE_AFTER_TRIES = 30;
+    private static final int EXPLORE_INTERVAL = 50;
+
+    public enum Attempt {
+        CROPPED(false, false),
+        CROPPED_INVERTED(false, true),
+        FULL_FRAME(true, false),
+        FULL_FRAME_INVERTED(true, true);
+
+        public final boolean fullFrame;
+        public final boolean inverted;
+
+        Attempt(boolean fullFrame, boolean inverted) {
+            this.fullFrame = fullFrame;
+            this.inverted = inverted;
+        }
+    }
+
+    private static final Attempt[] ATTEMPTS = Attempt.values();
+
+    private final long frameBudgetNanos;
+    private final AtomicIntegerArray tries = new AtomicIntegerArray(ATTEMPTS.length);
+    private final AtomicIntegerArray hits = new AtomicIntegerArray(ATTEMPTS.length);
+    private final AtomicInteger frames = new AtomicInteger();
+    private final AtomicInteger budgetExceeded = new AtomicInteger();
+
+    public DecodeStrategy() {
+        this(DEFAULT_FRAME_BUDGET_MS);
+    }
+
+    /**
+     * @param frameBudgetMs No further attempt is started on a frame once this much time is spent on it.
+     */
+    public DecodeStrategy(long frameBudgetMs) {
+        this.frameBudgetNanos = TimeUnit.MILLISECONDS.toNanos(frameBudgetMs);
+    }
+
+    /**
+     * Fill {@code order} with the attempts to make on the next frame, best first.
+     *
+     * @param order An array at least {@code Attempt.values().length} long.
+     * @return The number of attempts written.
+     */
+    public int order(Attempt[] order) {
+        boolean explore = frames.incrementAndGet() % EXPLORE_INTERVAL == 0;
+        int count = 0;
+        for (Attempt attempt : ATTEMPTS) {
+            if (!explore && isPruned(attempt)) {
+                continue;
+            }
+            // Insertion sort by hit rate, ties keep the declaration order
+            int i = count++;
+            double score = score(attempt);
+            while (i > 0 && score(order[i - 1]) < score) {
+                order[i] = order[i - 1];
+                i--;
+            }
+            order[i] = attempt;
+        }
+        return count;
+    }
+
+    /**
+     * @param start {@link System#nanoTime()} when the frame started decoding.
+     * @return Whether the frame may have another attempt.
+     */
+    public boolean hasBudget(long start) {
+        if (System.nanoTime() - start < frameBudgetNanos) {
+            return true;
+        }
+        budgetExceeded.incrementAndGet();
+        return false;
+    }
+
+    public long getFrameBudgetNanos() {
+        return frameBudgetNanos;
+    }
+
+    public void record(Attempt attempt, boolean hit) {
+        tries.incrementAndGet(attempt.ordinal());
+        if (hit) {
+            hits.incrementAndGet(attempt.ordinal());
+        }
+    }
+
+    private boolean isPruned(Attempt attempt) {
+        // The cropped attempt is the cheapest, it is always made
+        return attempt != Attempt.CROPPED
+                && tries.get(attempt.ordinal()) >= PRUNE_AFTER_TRIES && hits.get(attempt.ordinal()) == 0;
+    }
+
+    private double score(Attempt attempt) {
+        // Laplace smoothed hit rate, so untried attempts are neither favoured nor pruned
+        return (hits.get(attempt.ordinal()) + 1.0) / (tries.get(attempt.ordinal()) + 2.0);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("DecodeStrategy{frames=").append(frames.get())
+                .append(", budgetExceeded=").append(budgetExceeded.get());
+        for (Attempt attempt : ATTEMPTS) {
+            sb.append(", ").append(attempt.name()).append('=')
+                    .append(hits.get(attempt.ordinal())).append('/').append(tries.get(attempt.ordinal()));
+        }
+        return sb.append('}').toString();
+    }
+}
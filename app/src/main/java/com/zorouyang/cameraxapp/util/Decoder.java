@@ -16,21 +16,34 @@
 
 package com.zorouyang.cameraxapp.util;
 
+import android.content.ContentResolver;
 import android.graphics.Bitmap;
 import android.graphics.Point;
 import android.graphics.Rect;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
 import android.util.Log;
 import android.util.Size;
 import com.google.zxing.*;
 import com.google.zxing.common.GlobalHistogramBinarizer;
 import com.google.zxing.common.HybridBinarizer;
+import com.google.zxing.multi.GenericMultipleBarcodeReader;
+import com.google.zxing.multi.MultipleBarcodeReader;
+import com.google.zxing.multi.qrcode.QRCodeMultiReader;
 import com.google.zxing.qrcode.QRCodeReader;
 
+import java.io.FileDescriptor;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.EnumMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 final public class Decoder {
 
@@ -41,20 +54,60 @@ final public class Decoder {
 //    private static final int MAX_FRAME_WIDTH = 675; // = 5/8 * 1080
 //    private static final int MAX_FRAME_HEIGHT = 1200; // = 5/8 * 1920
 
+    // Frames that must outlive their ImageProxy are copied into buffers recycled through this pool
+    private static final FrameBufferPool sFramePool = new FrameBufferPool(4, 64L * 1024 * 1024);
+
     private final OnResultListener onResultListener;
-    //private final MultiFormatReader multiFormatReader;
     private final QRCodeReader mQrCodeReader;
+    private final QRCodeMultiReader mQrCodeMultiReader;
+    private volatile OnMultipleResultListener onMultipleResultListener;
     private final Map<DecodeHintType, Object> mHints;
+    // Set when decoding more formats than QR code, see setFormats()
+    private volatile MultiFormatEngine mFormatEngine;
+    // The multiple barcode reader over mFormatEngine, only touched by the decoding thread
+    private GenericMultipleBarcodeReader mFormatMultiReader;
+    private MultiFormatEngine mFormatMultiReaderEngine;
 
     private final Point screenResolution = new Point();
 
     private Rect framingRect;
     private Rect framingRectInPreview;
+    // The frame geometry framingRectInPreview was mapped for
+    private final Point framingRectInPreviewSize = new Point();
+    private int framingRectInPreviewRotation;
+    // Set when the framing rect falls outside a frame of that geometry
+    private boolean framingRectInPreviewOffFrame;
+
+    // Reused by every ByteBufferLuminanceSource this decoder builds, so getMatrix() stops allocating
+    private byte[] mMatrix;
+    // The luminance buffer of gallery decodes, owned so decoders can run on different threads
+    private final ImageDecoder mImageDecoder = new ImageDecoder();
+
+    // Levels whose shorter side is below this are too coarse to hold a readable code
+    private static final int MIN_PYRAMID_DIMENSION = 240;
+    private final LuminancePyramid mPyramid = new LuminancePyramid(MIN_PYRAMID_DIMENSION);
+    private boolean mPyramidEnabled = true;
+    private int mPyramidHits;
+
+    private DecodeStrategy mStrategy = new DecodeStrategy();
+    // Shrinks the decoded region to the neighbourhood of a code found in an earlier frame
+    private CodeTracker mTracker;
+    // Splits the full frame attempts into tiles decoded in parallel, see setTiledScanner()
+    private volatile TiledFrameScanner mTiledScanner;
+    // Decodes downsampled gallery images again at full resolution, see setRegionScanner()
+    private volatile RegionImageScanner mRegionScanner;
+    private final DecodeStrategy.Attempt[] mAttempts = new DecodeStrategy.Attempt[DecodeStrategy.Attempt.values().length];
+    // Frames on which the framing rect came up empty, or was off-frame, and the full frame was decoded
+    private final AtomicInteger mFullFrameFallbacks = new AtomicInteger();
 
     public interface OnResultListener {
         void onResult(Result result);
     }
 
+    public interface OnMultipleResultListener {
+        void onResults(List<Result> results);
+    }
+
     public Decoder(Size resolution, OnResultListener onResultListener) {
         this.onResultListener = onResultListener;
 
@@ -63,18 +116,13 @@ final public class Decoder {
         this.screenResolution.y = resolution.getHeight();
 
         // Get decode hints
-        /*Map<DecodeHintType, Object> hints = new EnumMap<>(DecodeHintType.class);
-        hints.put(DecodeHintType.POSSIBLE_FORMATS, ALL_FORMATS);
-
-        multiFormatReader = new MultiFormatReader();
-        multiFormatReader.setHints(hints);*/
-
         mHints = new EnumMap<>(DecodeHintType.class);
         mHints.put(DecodeHintType.CHARACTER_SET, "utf-8");
         mHints.put(DecodeHintType.TRY_HARDER, Boolean.TRUE);
         mHints.put(DecodeHintType.POSSIBLE_FORMATS, BarcodeFormat.QR_CODE);
 
         mQrCodeReader = new QRCodeReader();
+        mQrCodeMultiReader = new QRCodeMultiReader();
     }
 
     /**
@@ -86,18 +134,107 @@ final public class Decoder {
      * @param height The height of the preview frame.
      */
     public void decode(byte[] data, int width, int height) {
+        decode(data, width, height, 0);
+    }
+
+    /**
+     * Like {@link #decode(byte[], int, int)} for a frame that has to be rotated by
+     * {@code rotationDegrees} clockwise to be upright on screen.
+     */
+    public void decode(byte[] data, int width, int height, int rotationDegrees) {
         long start = System.nanoTime();
-        Result rawResult = null;
-        PlanarYUVLuminanceSource source;
 
-        source = buildLuminanceSource(data, width, height);
-        rawResult = decodeBySource(source);
+        Rect rect = getFramingRectInPreview(width, height, rotationDegrees);
+        PlanarYUVLuminanceSource cropped = buildLuminanceSource(data, width, height, rect);
+        // 直接返回整幅图像的数据，而不计算聚焦框大小
+        PlanarYUVLuminanceSource full = new PlanarYUVLuminanceSource(data, width, height, 0, 0, width, height, false);
+        decodeAndDispatch(cropped, rect, full, start);
+    }
+
+    /**
+     * Decode a frame straight from the Y plane buffer of an {@code ImageProxy}, without copying it.
+     *
+     * @param buffer    The Y plane buffer.
+     * @param width     The width of the frame.
+     * @param height    The height of the frame.
+     * @param rowStride The row stride of the Y plane.
+     * @return The decoded result, or null if no barcode was found.
+     */
+    public Result decode(ByteBuffer buffer, int width, int height, int rowStride) {
+        return decode(buffer, width, height, rowStride, 1);
+    }
 
-        if (rawResult == null) {
-            // 直接返回整幅图像的数据，而不计算聚焦框大小
-            source = new PlanarYUVLuminanceSource(data, width, height, 0, 0, width, height, false);
-            //Log.d(TAG, "Scan all the preview areas again without clipping, try again.");
-            rawResult = decodeBySource(source);
+    /**
+     * Like {@link #decode(ByteBuffer, int, int, int)} but for planes with a pixel stride other than 1.
+     */
+    public Result decode(ByteBuffer buffer, int width, int height, int rowStride, int pixelStride) {
+        return decode(buffer, width, height, rowStride, pixelStride, 0);
+    }
+
+    /**
+     * Like {@link #decode(ByteBuffer, int, int, int, int)} for a frame that has to be rotated by
+     * {@code rotationDegrees} clockwise to be upright on screen, as passed to the analyzer. The
+     * framing rect is mapped into the rotated frame.
+     */
+    public Result decode(ByteBuffer buffer, int width, int height, int rowStride, int pixelStride, int rotationDegrees) {
+        long start = System.nanoTime();
+        LuminanceSource cropped = null;
+
+        if (mMatrix == null || mMatrix.length < width * height) {
+            mMatrix = new byte[width * height];
+        }
+
+        Rect rect = getFramingRectInPreview(width, height, rotationDegrees);
+        if (rect != null) {
+            cropped = new ByteBufferLuminanceSource(buffer, rowStride, pixelStride,
+                    rect.left, rect.top, rect.width(), rect.height(), mMatrix);
+        }
+        // 直接返回整幅图像的数据，而不计算聚焦框大小
+        LuminanceSource full = new ByteBufferLuminanceSource(buffer, rowStride, pixelStride,
+                0, 0, width, height, mMatrix);
+        return decodeAndDispatch(cropped, rect, full, start);
+    }
+
+    /**
+     * Decode a frame in single or multiple result mode and notify the matching listener.
+     *
+     * @return The (first) result, or null if no barcode was found.
+     */
+    private Result decodeAndDispatch(LuminanceSource cropped, Rect rect, LuminanceSource full, long start) {
+        OnMultipleResultListener multipleResultListener = onMultipleResultListener;
+        if (multipleResultListener != null) {
+            List<Result> results = decodeMultiple(full);
+            if (results.isEmpty()) {
+                return null;
+            }
+            long end = System.nanoTime();
+            Log.d(TAG, "Found " + results.size() + " barcodes in " + TimeUnit.NANOSECONDS.toMillis(end - start) + " ms");
+            multipleResultListener.onResults(results);
+            return results.get(0);
+        }
+
+        Result rawResult;
+        CodeTracker tracker = mTracker;
+        Rect roi = tracker != null ? tracker.predict(full.getWidth(), full.getHeight()) : null;
+        if (roi != null) {
+            // Only the region around the tracked code first, a miss widens it for the next frame
+            rawResult = decodeOnce(full.crop(roi.left, roi.top, roi.width(), roi.height()));
+            if (rawResult != null) {
+                rawResult = transformResult(rawResult, 1, roi.left, roi.top);
+                tracker.onFound(rawResult.getResultPoints());
+            } else {
+                tracker.onMissed();
+                // The rest of the frame's budget goes to the usual attempts
+                rawResult = decodeFrame(cropped, rect, full, start);
+                if (rawResult != null) {
+                    tracker.onFound(rawResult.getResultPoints());
+                }
+            }
+        } else {
+            rawResult = decodeFrame(cropped, rect, full, start);
+            if (rawResult != null && tracker != null) {
+                tracker.onFound(rawResult.getResultPoints());
+            }
         }
 
         if (rawResult != null) {
@@ -106,38 +243,158 @@ final public class Decoder {
             Log.d(TAG, "Found barcode in " + TimeUnit.NANOSECONDS.toMillis(end - start) + " ms");
             onResultListener.onResult(rawResult);
         }
+        return rawResult;
+    }
+
+    /**
+     * Find every code in the frame, with ZXing's multiple barcode readers.
+     *
+     * @return The codes found, overlapping duplicates removed.
+     */
+    private List<Result> decodeMultiple(LuminanceSource source) {
+        // The multi readers crop the bitmap and come back to it, so it can't share the reusable matrices
+        BinaryBitmap bitmap = new BinaryBitmap(new HybridBinarizer(source));
+        MultiFormatEngine formatEngine = mFormatEngine;
+        MultipleBarcodeReader reader;
+        Reader delegate;
+        if (formatEngine != null) {
+            if (mFormatMultiReaderEngine != formatEngine) {
+                mFormatMultiReader = new GenericMultipleBarcodeReader(formatEngine);
+                mFormatMultiReaderEngine = formatEngine;
+            }
+            reader = mFormatMultiReader;
+            delegate = formatEngine;
+        } else {
+            reader = mQrCodeMultiReader;
+            delegate = mQrCodeMultiReader;
+        }
+        try {
+            return SpatialDeduplicator.dedupe(reader.decodeMultiple(bitmap, mHints));
+        } catch (NotFoundException e) {
+            return Collections.<Result>emptyList();
+        } finally {
+            delegate.reset();
+        }
+    }
+
+    /**
+     * Report every code of a frame to {@code listener} instead of the first one to the
+     * {@link OnResultListener}. Pass null to go back to single result mode.
+     */
+    public void setOnMultipleResultListener(OnMultipleResultListener listener) {
+        onMultipleResultListener = listener;
+    }
+
+    /**
+     * Copy a Y plane into a tightly packed buffer taken from the frame pool, for frames that have
+     * to be decoded after their {@code ImageProxy} is closed. Hand the buffer back with
+     * {@link #releaseFrame(byte[])} once it has been decoded.
+     *
+     * @return A {@code width * height} luminance buffer.
+     */
+    public static byte[] copyFrame(ByteBuffer buffer, int width, int height, int rowStride, int pixelStride) {
+        byte[] frame = sFramePool.acquire(width * height);
+        ByteBuffer src = buffer.duplicate();
+        if (pixelStride == 1 && rowStride == width) {
+            src.position(0);
+            src.get(frame, 0, width * height);
+        } else if (pixelStride == 1) {
+            for (int y = 0; y < height; y++) {
+                src.position(y * rowStride);
+                src.get(frame, y * width, width);
+            }
+        } else {
+            int offset = 0;
+            for (int y = 0; y < height; y++) {
+                int index = y * rowStride;
+                for (int x = 0; x < width; x++, index += pixelStride) {
+                    frame[offset++] = src.get(index);
+                }
+            }
+        }
+        return frame;
+    }
+
+    public static void releaseFrame(byte[] frame) {
+        sFramePool.release(frame);
     }
 
-    public Result decode(String path) {
+    public static FrameBufferPool getFramePool() {
+        return sFramePool;
+    }
+
+    /**
+     * Decode a gallery image scaled down, and at full resolution by regions if that misses. The
+     * image is read from {@code uri} through one file descriptor, without resolving it to a path.
+     * Works for any openable content URI, also under scoped storage.
+     *
+     * @return The result, or null if the image has no code.
+     * @throws IOException       If the image can't be opened, or is not one BitmapFactory can decode.
+     * @throws SecurityException If the app may not read {@code uri}.
+     */
+    public Result decode(ContentResolver resolver, Uri uri) throws IOException {
         long start = System.nanoTime();
-        Result rawResult = null;
+        ParcelFileDescriptor descriptor = resolver.openFileDescriptor(uri, "r");
+        if (descriptor == null) {
+            throw new FileNotFoundException("No descriptor for " + uri);
+        }
+        try {
+            FileDescriptor fd = descriptor.getFileDescriptor();
+            Point size = new Point();
+            Bitmap bitmap = ImageDecoder.decodeScaledBitmap(fd,
+                    ImageDecoder.MAX_IMAGE_RESOLUTION, ImageDecoder.MAX_IMAGE_RESOLUTION, Bitmap.Config.RGB_565, size);
+            if (bitmap == null) {
+                throw new IOException("Not a decodable image: " + uri);
+            }
+            Result rawResult = decodeLuminance(bitmap);
 
-        Bitmap bitmap = ImageDecoder.decodeSampledBitmap(path);
+            RegionImageScanner regionScanner = mRegionScanner;
+            if (rawResult == null && regionScanner != null && mFormatEngine == null) {
+                // Small codes may not have survived the downsampling
+                List<Result> results = regionScanner.scan(fd, size.x, size.y, false);
+                rawResult = results.isEmpty() ? null : results.get(0);
+            }
+            return dispatchImageResult(rawResult, start);
+        } finally {
+            try {
+                descriptor.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Decode the luminance of a scaled gallery image, as it is and then cropped to its center.
+     * The bitmap is recycled as soon as its luminance is read.
+     */
+    private Result decodeLuminance(Bitmap bitmap) {
         int width = bitmap.getWidth();
         int height = bitmap.getHeight();
         Log.d(TAG, "decodeQRCode bitmap: " + width + "x" + height);
 
-        /*int[] pixels = new int[bitmap.getWidth() * bitmap.getHeight()];
-        bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
-        LuminanceSource source = new RGBLuminanceSource(width, height, pixels);*/
-
-        LuminanceSource source = new BitmapLuminanceSource(bitmap);
-        rawResult = decodeBySource(source);
+        byte[] luminances = mImageDecoder.getLuminance(bitmap);
+        bitmap.recycle();
+        PlanarYUVLuminanceSource source = new PlanarYUVLuminanceSource(luminances, width, height,
+                0, 0, width, height, false);
+        Result rawResult = decodeBySource(source);
 
         if (rawResult == null) {
-            Log.d(TAG, "rawResult=null, convert to YUV420sp, PlanarYUVLuminanceSource try again.");
-
-            bitmap = ImageDecoder.cropImage(bitmap);
-            width = bitmap.getWidth();
-            height = bitmap.getHeight();
-            Log.d(TAG, "decodeQRCode cropImage: " + width + "x" + height);
-
-            byte[] data = ImageDecoder.getYUV420sp(width, height, bitmap);
-            source = new PlanarYUVLuminanceSource(data, width, height, 0, 0, width, height, false);
-
-            rawResult = decodeBySource(source);
+            // The center 6/8 as ImageDecoder.cropImage() had it, a view on the same luminances
+            int cropWidth = width * 6 / 8;
+            int cropHeight = height * 6 / 8;
+            int left = (width - cropWidth) / 2;
+            int top = (height - cropHeight) / 2;
+            Log.d(TAG, "decodeQRCode crop: " + cropWidth + "x" + cropHeight);
+
+            rawResult = decodeBySource(source.crop(left, top, cropWidth, cropHeight));
+            if (rawResult != null) {
+                rawResult = transformResult(rawResult, 1, left, top);
+            }
         }
+        return rawResult;
+    }
 
+    private Result dispatchImageResult(Result rawResult, long start) {
         if (rawResult != null) {
             // Don't log the barcode contents for security.
             long end = System.nanoTime();
@@ -147,26 +404,190 @@ final public class Decoder {
         return rawResult;
     }
 
-    private Result decodeBySource(LuminanceSource source) {
-        Result rawResult = null;
-        if (source != null) {
-            BinaryBitmap bitmap = new BinaryBitmap(new HybridBinarizer(source));
+    /**
+     * Predict the code's region from earlier frames, pass null to always decode the full frame.
+     */
+    public void setTracker(CodeTracker tracker) {
+        mTracker = tracker;
+    }
+
+    /**
+     * Decode the full frame attempts as tiles in parallel on {@code scanner}, in QR code only mode.
+     * Pass null to decode the full frame on the calling thread.
+     */
+    public void setTiledScanner(TiledFrameScanner scanner) {
+        mTiledScanner = scanner;
+    }
+
+    /**
+     * Decode gallery images that were downsampled at full resolution on {@code scanner} when the
+     * sampled attempts miss, in QR code only mode. Pass null to only decode the sampled image.
+     */
+    public void setRegionScanner(RegionImageScanner scanner) {
+        mRegionScanner = scanner;
+    }
+
+    /**
+     * Share one strategy between decoders, so they all learn from the same session.
+     */
+    public void setStrategy(DecodeStrategy strategy) {
+        mStrategy = strategy;
+    }
+
+    public DecodeStrategy getStrategy() {
+        return mStrategy;
+    }
+
+    /**
+     * Make the attempts the {@link DecodeStrategy} picks for this frame, best first, until one hits
+     * or the frame budget is spent. The pyramid levels and the tracked region, if any, were paid
+     * from the same budget.
+     *
+     * @param cropped The frame cropped to the framing rect, may be null.
+     * @param rect    The framing rect in frame coordinates, null when {@code cropped} is.
+     * @param full    The whole frame.
+     * @param start   {@link System#nanoTime()} when the frame started decoding.
+     * @return The result, its points in frame coordinates.
+     */
+    private Result decodeFrame(LuminanceSource cropped, Rect rect, LuminanceSource full, long start) {
+        // The pyramid relies on QRCodeReader telling a missing finder pattern from an unreadable code
+        if (mPyramidEnabled && mFormatEngine == null) {
+            Result rawResult = decodePyramid(full, start);
+            if (rawResult != null) {
+                return rawResult;
+            }
+        }
+
+        int count = mStrategy.order(mAttempts);
+        boolean fellBack = false;
+        for (int i = 0; i < count; i++) {
+            DecodeStrategy.Attempt attempt = mAttempts[i];
+            LuminanceSource source = attempt.fullFrame ? full : cropped;
+            if (source == null) {
+                continue;
+            }
+            // An attempt in progress can't be interrupted, so the budget is checked before each
+            if (!mStrategy.hasBudget(start)) {
+                break;
+            }
+            if (attempt.fullFrame && !fellBack) {
+                fellBack = true;
+                mFullFrameFallbacks.incrementAndGet();
+            }
+
+            Result rawResult;
+            TiledFrameScanner tiledScanner = mTiledScanner;
+            if (attempt.fullFrame && tiledScanner != null && mFormatEngine == null) {
+                rawResult = tiledScanner.scan(source, attempt.inverted, mHints,
+                        start + mStrategy.getFrameBudgetNanos());
+            } else {
+                rawResult = decodeOnce(attempt.inverted ? source.invert() : source);
+            }
+            mStrategy.record(attempt, rawResult != null);
+            if (rawResult != null) {
+                return attempt.fullFrame ? rawResult : transformResult(rawResult, 1, rect.left, rect.top);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Try the downsampled levels of the frame, coarsest first. Large, near codes decode fine at a
+     * quarter of the resolution for a fraction of the cost. A finer level is only tried when the
+     * coarser one found a finder pattern but could not decode it, and the frame budget allows.
+     *
+     * @param start {@link System#nanoTime()} when the frame started decoding.
+     * @return The result in full frame coordinates, or null if the full resolution attempts are needed.
+     */
+    private Result decodePyramid(LuminanceSource full, long start) {
+        int levels = mPyramid.build(full);
+        for (int level = levels - 1; level >= 0; level--) {
+            if (!mStrategy.hasBudget(start)) {
+                return null;
+            }
+            BinaryBitmap bitmap = new BinaryBitmap(new ReusableHybridBinarizer(mPyramid.getLevel(level)));
             try {
-                rawResult = mQrCodeReader.decode(bitmap, mHints);
-            } catch (ReaderException ignored) {
+                Result rawResult = mQrCodeReader.decode(bitmap, mHints);
+                mPyramidHits++;
+                return transformResult(rawResult, LuminancePyramid.getScale(level), 0, 0);
+            } catch (NotFoundException e) {
+                // No finder pattern at this level, a finer level won't be more successful
+                return null;
+            } catch (ChecksumException | FormatException e) {
+                // Found but not readable at this resolution, go up a level
             } finally {
                 mQrCodeReader.reset();
             }
+        }
+        return null;
+    }
+
+    public void setPyramidEnabled(boolean enabled) {
+        mPyramidEnabled = enabled;
+    }
+
+    public int getPyramidHits() {
+        return mPyramidHits;
+    }
+
+    /**
+     * Map the points of a result found in a scaled and/or cropped source back to frame coordinates.
+     */
+    static Result transformResult(Result result, float scale, int left, int top) {
+        ResultPoint[] points = result.getResultPoints();
+        ResultPoint[] transformed = null;
+        if (points != null) {
+            transformed = new ResultPoint[points.length];
+            for (int i = 0; i < points.length; i++) {
+                transformed[i] = points[i] == null ? null
+                        : new ResultPoint(points[i].getX() * scale + left, points[i].getY() * scale + top);
+            }
+        }
+        Result mapped = new Result(result.getText(), result.getRawBytes(), result.getNumBits(),
+                transformed, result.getBarcodeFormat(), result.getTimestamp());
+        mapped.putAllMetadata(result.getResultMetadata());
+        return mapped;
+    }
+
+    /**
+     * Decode more formats than QR code, e.g. {@link #ALL_FORMATS}.
+     *
+     * @param formats The formats to decode, null or QR code alone goes back to the QR code reader.
+     * @param tracker Collects the per-format attempt cost, may be shared between decoders.
+     */
+    public void setFormats(Collection<BarcodeFormat> formats, FormatCostTracker tracker) {
+        if (formats == null || (formats.size() == 1 && formats.contains(BarcodeFormat.QR_CODE))) {
+            mFormatEngine = null;
+        } else {
+            mFormatEngine = new MultiFormatEngine(formats, tracker);
+        }
+    }
+
+    private Reader getReader() {
+        MultiFormatEngine formatEngine = mFormatEngine;
+        return formatEngine != null ? formatEngine : mQrCodeReader;
+    }
+
+    private Result decodeOnce(LuminanceSource source) {
+        Result rawResult = null;
+        BinaryBitmap bitmap = new BinaryBitmap(new ReusableHybridBinarizer(source));
+        Reader reader = getReader();
+        try {
+            rawResult = reader.decode(bitmap, mHints);
+        } catch (ReaderException ignored) {
+        } finally {
+            reader.reset();
+        }
+        return rawResult;
+    }
+
+    private Result decodeBySource(LuminanceSource source) {
+        Result rawResult = null;
+        if (source != null) {
+            rawResult = decodeOnce(source);
             //If can't scan, invert again.
             if (rawResult == null) {
-                LuminanceSource invertedSource = source.invert();
-                bitmap = new BinaryBitmap(new HybridBinarizer(invertedSource));
-                try {
-                    rawResult = mQrCodeReader.decode(bitmap, mHints);
-                } catch (ReaderException e) {
-                } finally {
-                    mQrCodeReader.reset();
-                }
+                rawResult = decodeOnce(source.invert());
             }
         }
         return rawResult;
@@ -211,25 +632,60 @@ final public class Decoder {
      * Like {@link #getFramingRect} but coordinates are in terms of the preview frame,
      * not UI / screen.
      *
-     * @param width  The width of the image.
-     * @param height The height of the image.
+     * @param width           The width of the image.
+     * @param height          The height of the image.
+     * @param rotationDegrees The clockwise rotation that makes the image upright on screen.
      * @return {@link Rect} expressing barcode scan area in terms of the preview size
      */
-    private synchronized Rect getFramingRectInPreview(int width, int height) {
-        if (framingRectInPreview == null) {
+    private synchronized Rect getFramingRectInPreview(int width, int height, int rotationDegrees) {
+        // The analysis resolution and the display rotation may change at runtime
+        if (framingRectInPreviewSize.x != width || framingRectInPreviewSize.y != height
+                || framingRectInPreviewRotation != rotationDegrees) {
+            framingRectInPreview = null;
+            framingRectInPreviewOffFrame = false;
+        }
+        if (framingRectInPreview == null && !framingRectInPreviewOffFrame) {
             Rect framingRect = getFramingRect();
             if (framingRect == null) {
                 return null;
             }
-            Rect rect = new Rect(framingRect);
-
-            Log.d(TAG, "cameraResolution: " + width + "x" + height + ", screenResolution: " + screenResolution.x + "x" + screenResolution.y);
 
-            Point cameraResolution = new Point(width, height);
-            rect.left = rect.left * cameraResolution.x / screenResolution.x;
-            rect.right = rect.right * cameraResolution.x / screenResolution.x;
-            rect.top = rect.top * cameraResolution.y / screenResolution.y;
-            rect.bottom = rect.bottom * cameraResolution.y / screenResolution.y;
+            Log.d(TAG, "cameraResolution: " + width + "x" + height + ", rotation: " + rotationDegrees
+                    + ", screenResolution: " + screenResolution.x + "x" + screenResolution.y);
+
+            // Scale to the upright image first, the frame is on its side for 90 and 270 degrees
+            boolean sideways = rotationDegrees == 90 || rotationDegrees == 270;
+            int uprightWidth = sideways ? height : width;
+            int uprightHeight = sideways ? width : height;
+            int left = framingRect.left * uprightWidth / screenResolution.x;
+            int right = framingRect.right * uprightWidth / screenResolution.x;
+            int top = framingRect.top * uprightHeight / screenResolution.y;
+            int bottom = framingRect.bottom * uprightHeight / screenResolution.y;
+
+            // Then rotate back into the frame
+            Rect rect;
+            switch (rotationDegrees) {
+                case 90:
+                    rect = new Rect(top, height - right, bottom, height - left);
+                    break;
+                case 180:
+                    rect = new Rect(width - right, height - bottom, width - left, height - top);
+                    break;
+                case 270:
+                    rect = new Rect(width - bottom, left, width - top, right);
+                    break;
+                default:
+                    rect = new Rect(left, top, right, bottom);
+                    break;
+            }
+            framingRectInPreviewSize.set(width, height);
+            framingRectInPreviewRotation = rotationDegrees;
+            if (!rect.intersect(0, 0, width, height)) {
+                // Not computed again for the following frames of this geometry
+                framingRectInPreviewOffFrame = true;
+                Log.d(TAG, "framingRectInPreview is off the frame");
+                return null;
+            }
             framingRectInPreview = rect;
 
             Log.d(TAG, "Calculated framingRectInPreview: " + framingRectInPreview.toString() + ", " + framingRectInPreview.width() + "x" + framingRectInPreview.height());
@@ -237,6 +693,14 @@ final public class Decoder {
         return framingRectInPreview;
     }
 
+    /**
+     * @return How many frames fell back to decoding the full frame, a high share next to the decoded
+     * frames means the framing rect misses the codes.
+     */
+    public int getFullFrameFallbacks() {
+        return mFullFrameFallbacks.get();
+    }
+
     /**
      * A factory method to build the appropriate LuminanceSource object based on the format
      * of the preview buffers, as described by Camera.Parameters.
@@ -244,10 +708,10 @@ final public class Decoder {
      * @param data   A preview frame.
      * @param width  The width of the image.
      * @param height The height of the image.
+     * @param rect   The framing rect in frame coordinates, may be null.
      * @return A PlanarYUVLuminanceSource instance.
      */
-    private PlanarYUVLuminanceSource buildLuminanceSource(byte[] data, int width, int height) {
-        Rect rect = getFramingRectInPreview(width, height);
+    private PlanarYUVLuminanceSource buildLuminanceSource(byte[] data, int width, int height, Rect rect) {
         if (rect == null) {
             return null;
         }
@@ -0,0 +1,118 @@
+package com.zorouyang.cameraxapp.util;
+
+import com.google.zxing.BarcodeFormat;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Per-format decode attempt accounting, shared by all decoders of a session.
+ *
+ * <p>Tracks attempts, hits and time spent per {@link BarcodeFormat}, so formats that cost a lot
+ * and never hit can be switched off with {@link #setEnabled(BarcodeFormat, boolean)}. The 1D
+ * formats are read in one pass, their attempts and time are tracked as a single bucket, their
+ * hits still per format.
+ */
+public final class FormatCostTracker {
+
+    private static final BarcodeFormat[] FORMATS = BarcodeFormat.values();
+
+    private final AtomicLongArray attempts = new AtomicLongArray(FORMATS.length);
+    private final AtomicLongArray hits = new AtomicLongArray(FORMATS.length);
+    private final AtomicLongArray nanos = new AtomicLongArray(FORMATS.length);
+    private final AtomicIntegerArray disabled = new AtomicIntegerArray(FORMATS.length);
+    private final AtomicLong oneDAttempts = new AtomicLong();
+    private final AtomicLong oneDNanos = new AtomicLong();
+
+    public void record(BarcodeFormat format, long elapsedNanos, boolean hit) {
+        int i = format.ordinal();
+        attempts.incrementAndGet(i);
+        nanos.addAndGet(i, elapsedNanos);
+        if (hit) {
+            hits.incrementAndGet(i);
+        }
+    }
+
+    /**
+     * Record one pass over the 1D formats.
+     *
+     * @param hit The format found, null if none was.
+     */
+    public void recordOneD(long elapsedNanos, BarcodeFormat hit) {
+        oneDAttempts.incrementAndGet();
+        oneDNanos.addAndGet(elapsedNanos);
+        if (hit != null) {
+            hits.incrementAndGet(hit.ordinal());
+        }
+    }
+
+    public boolean isEnabled(BarcodeFormat format) {
+        return disabled.get(format.ordinal()) == 0;
+    }
+
+    public void setEnabled(BarcodeFormat format, boolean enabled) {
+        disabled.set(format.ordinal(), enabled ? 0 : 1);
+    }
+
+    public long getAttempts(BarcodeFormat format) {
+        return attempts.get(format.ordinal());
+    }
+
+    public long getHits(BarcodeFormat format) {
+        return hits.get(format.ordinal());
+    }
+
+    /**
+     * @return The average time of one attempt at {@code format}, in microseconds.
+     */
+    public long getAverageCostMicros(BarcodeFormat format) {
+        long count = attempts.get(format.ordinal());
+        return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(nanos.get(format.ordinal()) / count);
+    }
+
+    public long getOneDAttempts() {
+        return oneDAttempts.get();
+    }
+
+    /**
+     * @return The average time of one pass over the 1D formats, in microseconds.
+     */
+    public long getOneDAverageCostMicros() {
+        long count = oneDAttempts.get();
+        return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(oneDNanos.get() / count);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("FormatCostTracker{");
+        boolean first = true;
+        if (getOneDAttempts() > 0) {
+            sb.append("1D=").append(getOneDAttempts()).append(" attempts, ").append(getOneDAverageCostMicros())
+                    .append("us");
+            first = false;
+        }
+        for (BarcodeFormat format : FORMATS) {
+            if (getAttempts(format) == 0 && getHits(format) == 0) {
+                continue;
+            }
+            if (!first) {
+                sb.append(", ");
+            }
+            first = false;
+            sb.append(format.name()).append('=').append(getHits(format));
+            if (getAttempts(format) > 0) {
+                sb.append('/').append(getAttempts(format)).append(" hits, ").append(getAverageCostMicros(format))
+                        .append("us");
+            } else {
+                // A 1D format, its attempts are the 1D bucket's
+                sb.append(" hits");
+            }
+            if (!isEnabled(format)) {
+                sb.append(" (off)");
+            }
+        }
+        return sb.append('}').toString();
+    }
+}
@@ -0,0 +1,166 @@
+package com.zorouyang.cameraxapp.util;
+
+import android.content.ComponentCallbacks2;
+import android.content.res.Configuration;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * A bounded pool of reusable frame buffers, keyed by frame size.
+ *
+ * <p>Use it whenever a frame has to outlive the {@code ImageProxy} it came from (e.g. when it is
+ * handed to another thread): {@link #acquire(int)} a buffer, copy into it, and {@link #release(byte[])}
+ * it once decoding is done. Register the pool with
+ * {@link android.content.Context#registerComponentCallbacks(android.content.ComponentCallbacks)}
+ * so it gives its memory back when the system asks.
+ */
+public final class FrameBufferPool implements ComponentCallbacks2 {
+
+    private static final String TAG = FrameBufferPool.class.getSimpleName();
+
+    private final int maxBuffersPerSize;
+    private final long maxPooledBytes;
+
+    private final Map<Integer, ArrayDeque<byte[]>> pool = new HashMap<>();
+
+    private long pooledBytes;
+    private int outstanding;
+
+    private long hits;
+    private long misses;
+    private long pooledBytesHighWater;
+    private int outstandingHighWater;
+
+    /**
+     * @param maxBuffersPerSize How many idle buffers of one size are kept.
+     * @param maxPooledBytes    Upper bound for the memory held by idle buffers.
+     */
+    public FrameBufferPool(int maxBuffersPerSize, long maxPooledBytes) {
+        this.maxBuffersPerSize = maxBuffersPerSize;
+        this.maxPooledBytes = maxPooledBytes;
+    }
+
+    /**
+     * @param size The frame size in bytes.
+     * @return A buffer of exactly {@code size} bytes, its content is undefined.
+     */
+    public synchronized byte[] acquire(int size) {
+        byte[] buffer = null;
+        ArrayDeque<byte[]> buffers = pool.get(size);
+        if (buffers != null) {
+            buffer = buffers.pollFirst();
+        }
+
+        if (buffer != null) {
+            hits++;
+            pooledBytes -= size;
+        } else {
+            misses++;
+            buffer = new byte[size];
+        }
+
+        outstanding++;
+        if (outstanding > outstandingHighWater) {
+            outstandingHighWater = outstanding;
+        }
+        return buffer;
+    }
+
+    /**
+     * Give a buffer obtained from {@link #acquire(int)} back to the pool. The buffer is simply
+     * dropped when the pool is full.
+     */
+    public synchronized void release(byte[] buffer) {
+        if (buffer == null) {
+            return;
+        }
+        outstanding--;
+
+        int size = buffer.length;
+        ArrayDeque<byte[]> buffers = pool.get(size);
+        if (buffers == null) {
+            buffers = new ArrayDeque<>(maxBuffersPerSize);
+            pool.put(size, buffers);
+        }
+        if (buffers.size() >= maxBuffersPerSize || pooledBytes + size > maxPooledBytes) {
+            return;
+        }
+
+        buffers.offerFirst(buffer);
+        pooledBytes += size;
+        if (pooledBytes > pooledBytesHighWater) {
+            pooledBytesHighWater = pooledBytes;
+        }
+    }
+
+    /**
+     * Drop idle buffers until no more than {@code maxBytes} are held.
+     */
+    public synchronized void trimToSize(long maxBytes) {
+        Iterator<ArrayDeque<byte[]>> iterator = pool.values().iterator();
+        while (pooledBytes > maxBytes && iterator.hasNext()) {
+            ArrayDeque<byte[]> buffers = iterator.next();
+            while (pooledBytes > maxBytes && !buffers.isEmpty()) {
+                pooledBytes -= buffers.pollLast().length;
+            }
+            if (buffers.isEmpty()) {
+                iterator.remove();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        pool.clear();
+        pooledBytes = 0;
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        Log.d(TAG, "onTrimMemory: " + level + ", " + this);
+        if (level >= TRIM_MEMORY_BACKGROUND || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+            clear();
+        } else if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            trimToSize(getPooledBytes() / 2);
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        clear();
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getPooledBytes() {
+        return pooledBytes;
+    }
+
+    public synchronized long getPooledBytesHighWater() {
+        return pooledBytesHighWater;
+    }
+
+    public synchronized int getOutstandingHighWater() {
+        return outstandingHighWater;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "FrameBufferPool{hits=" + hits + ", misses=" + misses
+                + ", pooledBytes=" + pooledBytes + ", pooledBytesHighWater=" + pooledBytesHighWater
+                + ", outstanding=" + outstanding + ", outstandingHighWater=" + outstandingHighWater + "}";
+    }
+}
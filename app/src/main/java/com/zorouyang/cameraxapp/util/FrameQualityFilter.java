@@ -0,0 +1,116 @@
+package com.zorouyang.cameraxapp.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A cheap pre-filter that skips frames too blurred or too flat to decode, before any binarization.
+ *
+ * <p>Both scores are computed on a subsampled grid of the Y plane: sharpness is the variance of
+ * the 4-neighbour Laplacian, contrast the standard deviation of luma, saturation the share of
+ * clipped samples. A frame is skipped when its sharpness falls below {@link #SHARPNESS_RATIO} of
+ * the recent average, which adapts to the scene and lighting, or when it has hardly any contrast
+ * or is mostly clipped. Thread-safe.
+ */
+public final class FrameQualityFilter {
+
+    // Roughly this many samples per row and column, whatever the frame size
+    private static final int GRID = 64;
+    private static final float SHARPNESS_RATIO = 0.5f;
+    // Weight of the newest frame in the running sharpness average
+    private static final float SHARPNESS_SMOOTHING = 0.1f;
+    private static final float MIN_CONTRAST = 8f;
+    private static final float MAX_SATURATION = 0.5f;
+
+    private float averageSharpness = -1;
+
+    private long frames;
+    private long skippedBlur;
+    private long skippedContrast;
+    private float lastSharpness;
+    private float lastContrast;
+
+    /**
+     * @return Whether the frame is worth decoding.
+     */
+    public boolean accept(ByteBuffer buffer, int width, int height, int rowStride, int pixelStride) {
+        int step = Math.max(2, Math.min(width, height) / GRID);
+
+        long count = 0;
+        long sum = 0;
+        long sumSquares = 0;
+        long clipped = 0;
+        double laplacianSum = 0;
+        double laplacianSquares = 0;
+
+        for (int y = step; y < height - 1; y += step) {
+            int row = y * rowStride;
+            for (int x = step; x < width - 1; x += step) {
+                int index = row + x * pixelStride;
+                int center = buffer.get(index) & 0xff;
+                int laplacian = (buffer.get(index - pixelStride) & 0xff) + (buffer.get(index + pixelStride) & 0xff)
+                        + (buffer.get(index - rowStride) & 0xff) + (buffer.get(index + rowStride) & 0xff)
+                        - 4 * center;
+
+                count++;
+                sum += center;
+                sumSquares += center * center;
+                if (center <= 5 || center >= 250) {
+                    clipped++;
+                }
+                laplacianSum += laplacian;
+                laplacianSquares += laplacian * laplacian;
+            }
+        }
+        if (count == 0) {
+            return true;
+        }
+
+        double mean = (double) sum / count;
+        float contrast = (float) Math.sqrt(Math.max(0, (double) sumSquares / count - mean * mean));
+        double laplacianMean = laplacianSum / count;
+        float sharpness = (float) (laplacianSquares / count - laplacianMean * laplacianMean);
+        float saturation = (float) clipped / count;
+
+        synchronized (this) {
+            frames++;
+            lastSharpness = sharpness;
+            lastContrast = contrast;
+
+            if (contrast < MIN_CONTRAST || saturation > MAX_SATURATION) {
+                skippedContrast++;
+                return false;
+            }
+
+            // Every frame moves the average, so a scene that is blurry for good is not skipped forever
+            boolean sharp = averageSharpness < 0 || sharpness >= averageSharpness * SHARPNESS_RATIO;
+            averageSharpness = averageSharpness < 0 ? sharpness
+                    : averageSharpness + SHARPNESS_SMOOTHING * (sharpness - averageSharpness);
+            if (!sharp) {
+                skippedBlur++;
+            }
+            return sharp;
+        }
+    }
+
+    public synchronized long getSkippedBlur() {
+        return skippedBlur;
+    }
+
+    public synchronized long getSkippedContrast() {
+        return skippedContrast;
+    }
+
+    /**
+     * @return The share of frames skipped.
+     */
+    public synchronized double getSkipRate() {
+        return frames == 0 ? 0 : (double) (skippedBlur + skippedContrast) / frames;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "FrameQualityFilter{frames=" + frames + ", skippedBlur=" + skippedBlur
+                + ", skippedContrast=" + skippedContrast + ", averageSharpness=" + averageSharpness
+                + ", lastSharpness=" + lastSharpness + ", lastContrast=" + lastContrast + "}";
+    }
+}
@@ -0,0 +1,117 @@
+package com.zorouyang.cameraxapp.util;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+/**
+ * Per-frame statistics of the Y plane: mean luma, a 256-bin histogram and the frame rate.
+ *
+ * <p>Cheap enough to run on every frame next to decoding: the plane buffer is sampled in place
+ * every {@code sampleStep} pixels in both directions, and the frame rate is a moving average over
+ * a primitive ring buffer of timestamps. Nothing is allocated per frame. {@link #update} and
+ * {@link #logIfDue} must be called from one thread; the getters may be called from any.
+ */
+public final class FrameStats {
+
+    private static final int FRAME_RATE_WINDOW = 8;
+    private static final long LOG_INTERVAL_MILLIS = 1000;
+
+    private final int sampleStep;
+    private final int[] histogram = new int[256];
+    private final long[] timestamps = new long[FRAME_RATE_WINDOW];
+    private int head;
+    private int timestampCount;
+    private long lastLog;
+
+    private volatile double meanLuma;
+    private volatile double framesPerSecond = -1;
+    private volatile long frames;
+
+    /**
+     * @param sampleStep Only every {@code sampleStep}-th pixel of every {@code sampleStep}-th row is read.
+     */
+    public FrameStats(int sampleStep) {
+        this.sampleStep = Math.max(1, sampleStep);
+    }
+
+    public void update(ByteBuffer buffer, int width, int height, int rowStride, int pixelStride) {
+        long now = SystemClock.elapsedRealtime();
+        timestamps[head] = now;
+        head = (head + 1) % FRAME_RATE_WINDOW;
+        if (timestampCount < FRAME_RATE_WINDOW) {
+            timestampCount++;
+        }
+        if (timestampCount > 1) {
+            long oldest = timestamps[(head - timestampCount + FRAME_RATE_WINDOW) % FRAME_RATE_WINDOW];
+            long elapsed = now - oldest;
+            framesPerSecond = elapsed <= 0 ? -1 : (timestampCount - 1) * 1000.0 / elapsed;
+        }
+
+        synchronized (histogram) {
+            for (int i = 0; i < histogram.length; i++) {
+                histogram[i] = 0;
+            }
+            long sum = 0;
+            int count = 0;
+            int columnStep = sampleStep * pixelStride;
+            for (int y = 0; y < height; y += sampleStep) {
+                int end = y * rowStride + width * pixelStride;
+                for (int index = y * rowStride; index < end; index += columnStep) {
+                    int luma = buffer.get(index) & 0xff;
+                    histogram[luma]++;
+                    sum += luma;
+                    count++;
+                }
+            }
+            meanLuma = count == 0 ? 0 : (double) sum / count;
+        }
+        frames++;
+    }
+
+    public double getMeanLuma() {
+        return meanLuma;
+    }
+
+    /**
+     * @return The moving average frame rate, or -1 before there are two frames.
+     */
+    public double getFramesPerSecond() {
+        return framesPerSecond;
+    }
+
+    public long getFrames() {
+        return frames;
+    }
+
+    /**
+     * Log the statistics under {@code tag}, no more often than every second.
+     */
+    public void logIfDue(String tag) {
+        long now = SystemClock.elapsedRealtime();
+        if (now - lastLog < LOG_INTERVAL_MILLIS) {
+            return;
+        }
+        lastLog = now;
+        Log.d(tag, toString());
+    }
+
+    /**
+     * Copy the histogram of the last frame into {@code out}.
+     *
+     * @param out At least 256 long.
+     */
+    public void getHistogram(int[] out) {
+        synchronized (histogram) {
+            System.arraycopy(histogram, 0, out, 0, histogram.length);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "Average luminosity: %.1f. Frames per second: %.1f",
+                meanLuma, framesPerSecond);
+    }
+}
@@ -1,10 +1,12 @@
 package com.zorouyang.cameraxapp.util;
 
+import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.Context;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Build;
+import android.os.Bundle;
 import android.os.Environment;
 import android.provider.DocumentsContract;
 import android.provider.MediaStore;
@@ -84,6 +86,31 @@ public class GalleryPhotoUtil {
         return null;
     }
 
+    /**
+     * Query a page of {@link MediaStore.Images} in {@code _ID} order, for walking the whole
+     * gallery without holding it all in one cursor.
+     *
+     * @param afterId    Only images with a larger {@code _ID}, -1 for the first page.
+     * @param projection The columns to return.
+     * @param limit      The page size.
+     */
+    public static Cursor queryImages(Context context, long afterId, String[] projection, int limit) {
+        Uri uri = MediaStore.Images.Media.EXTERNAL_CONTENT_URI;
+        String selection = MediaStore.Images.Media._ID + ">?";
+        String[] selectionArgs = {String.valueOf(afterId)};
+        String sortOrder = MediaStore.Images.Media._ID + " ASC";
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            Bundle queryArgs = new Bundle();
+            queryArgs.putString(ContentResolver.QUERY_ARG_SQL_SELECTION, selection);
+            queryArgs.putStringArray(ContentResolver.QUERY_ARG_SQL_SELECTION_ARGS, selectionArgs);
+            queryArgs.putString(ContentResolver.QUERY_ARG_SQL_SORT_ORDER, sortOrder);
+            queryArgs.putInt(ContentResolver.QUERY_ARG_LIMIT, limit);
+            return context.getContentResolver().query(uri, projection, queryArgs, null);
+        }
+        return context.getContentResolver().query(uri, projection, selection, selectionArgs,
+                sortOrder + " LIMIT " + limit);
+    }
+
     public static String selectImage(Context context, Uri contentUri) {
         if (contentUri != null) {
             String uriStr = contentUri.toString();
@@ -1,61 +1,97 @@
 package com.zorouyang.cameraxapp.util;
 
+import android.content.ContentResolver;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.Point;
 import android.graphics.Rect;
 import android.net.Uri;
+import android.os.ParcelFileDescriptor;
 import android.util.Log;
 import com.google.zxing.*;
-import com.google.zxing.common.HybridBinarizer;
 import com.google.zxing.qrcode.QRCodeReader;
 
 import java.io.BufferedInputStream;
+import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.InputStream;
-import java.util.Arrays;
 import java.util.EnumMap;
-import java.util.EnumSet;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 /**
  * QRCode Image decoder
+ *
+ * <p>An instance owns its readers, hints and luminance buffer: the buffer grows to the largest
+ * image decoded and is reused from then on, the pixels are read in small per-thread bands.
+ * Instances are not thread-safe, decode on several threads with one instance per thread. The
+ * bitmap helpers are static.
  */
 public class ImageDecoder {
     private static final String TAG = Decoder.class.getSimpleName();
     public static final int MAX_IMAGE_RESOLUTION = 1200;
 
-    private static final Map<DecodeHintType, Object> hints = new EnumMap<>(DecodeHintType.class);
-    static  {
+    // Rows converted per getPixels() call, so no int[] of the whole image is needed
+    private static final int LUMINANCE_BAND_ROWS = 16;
+
+    // The band buffers of the conversion threads, the bands of one image may run on several
+    private static final ThreadLocal<int[]> sBands = new ThreadLocal<>();
+
+    // Shared by all instances, see scanQRImage(Bitmap)
+    private static MultiScaleScanner sMultiScaleScanner;
+
+    private final Map<DecodeHintType, Object> hints = new EnumMap<>(DecodeHintType.class);
+    private final QRCodeReader qrCodeReader = new QRCodeReader();
+    // Hinted once and reused, setting up the format readers costs more than many a decode
+    private MultiFormatReader multiFormatReader;
+
+    private byte[] luminances;
+
+    public ImageDecoder() {
         hints.put(DecodeHintType.CHARACTER_SET, "utf-8");
         hints.put(DecodeHintType.TRY_HARDER, Boolean.TRUE);
         hints.put(DecodeHintType.POSSIBLE_FORMATS, BarcodeFormat.QR_CODE);
     }
 
+    /**
+     * @return A reader hinted for {@link Decoder#ALL_FORMATS}, as {@link #decodeImage(String)} uses.
+     */
+    public static MultiFormatReader newMultiFormatReader() {
+        Map<DecodeHintType, Object> allFormatHints = new EnumMap<>(DecodeHintType.class);
+        allFormatHints.put(DecodeHintType.CHARACTER_SET, "utf-8");
+        allFormatHints.put(DecodeHintType.TRY_HARDER, Boolean.TRUE);
+        allFormatHints.put(DecodeHintType.POSSIBLE_FORMATS, Decoder.ALL_FORMATS);
+        MultiFormatReader reader = new MultiFormatReader();
+        reader.setHints(allFormatHints);
+        return reader;
+    }
+
     /**
      * Only support QRCode
      * @param path
      * @return
      */
-    static public Result decodeQRCode(String path) {
+    public Result decodeQRCode(String path) {
         long start = System.nanoTime();
         Result rawResult = null;
 
-        Bitmap original = decodeSampledBitmap(path, MAX_IMAGE_RESOLUTION, MAX_IMAGE_RESOLUTION);//BitmapFactory.decodeFile(path);
+        Bitmap original = decodeScaledBitmap(path, MAX_IMAGE_RESOLUTION, MAX_IMAGE_RESOLUTION, Bitmap.Config.RGB_565);//BitmapFactory.decodeFile(path);
+        if (original == null) {
+            return null;
+        }
         int width = original.getWidth();
         int height = original.getHeight();
         Log.d("Decoder", "decodeQRCode final: " + width + "x" + height);
 
-        byte[] data = getYUV420sp(width, height, original);
+        byte[] data = getLuminance(original);
+        original.recycle();
         PlanarYUVLuminanceSource source;
         source = new PlanarYUVLuminanceSource(data, width, height, 0, 0, width, height, false);
 
-        //BitmapLuminanceSource source = new BitmapLuminanceSource(decodeSampledBitmap(path, 1080));
-
         if (source != null) {
-            QRCodeReader qrCodeReader = new QRCodeReader();
-            BinaryBitmap bitmap = new BinaryBitmap(new HybridBinarizer(source));
+            BinaryBitmap bitmap = new BinaryBitmap(new ReusableHybridBinarizer(source));
             try {
                 rawResult = qrCodeReader.decode(bitmap, hints);
             } catch (ReaderException ignored) {
@@ -77,22 +113,59 @@ public class ImageDecoder {
      * @param path image real path
      * @return decoded result
      */
-    static public Result decodeImage(String path) {
+    public Result decodeImage(String path) {
         long start = System.nanoTime();
-        Result rawResult = null;
-
-        Bitmap original = decodeSampledBitmap(path, MAX_IMAGE_RESOLUTION, MAX_IMAGE_RESOLUTION);
+        Bitmap original = decodeScaledBitmap(path, MAX_IMAGE_RESOLUTION, MAX_IMAGE_RESOLUTION, Bitmap.Config.RGB_565);
+        if (original == null) {
+            return null;
+        }
 
         //BitmapLuminanceSource source = new BitmapLuminanceSource(original);
 
-        int[] pixels = new int[original.getWidth() * original.getHeight()];
-        original.getPixels(pixels, 0, original.getWidth(), 0, 0, original.getWidth(), original.getHeight());
-        RGBLuminanceSource source = new RGBLuminanceSource(original.getWidth(), original.getHeight(), pixels);
+        return decodeImage(original, start);
+    }
 
-        if (source != null) {
-            BinaryBitmap bitmap = new BinaryBitmap(new HybridBinarizer(source));
+    /**
+     * Like {@link #decodeImage(String)}, but reads the image through one file descriptor of
+     * {@code uri}, without resolving it to a path, so it also works under scoped storage.
+     *
+     * @return The result, or null if the image has no code.
+     * @throws IOException If the image can't be opened, or is not one BitmapFactory can decode.
+     */
+    public Result decodeImage(ContentResolver resolver, Uri uri) throws IOException {
+        long start = System.nanoTime();
+        ParcelFileDescriptor descriptor = resolver.openFileDescriptor(uri, "r");
+        if (descriptor == null) {
+            throw new FileNotFoundException("No descriptor for " + uri);
+        }
+        try {
+            Bitmap original = decodeScaledBitmap(descriptor.getFileDescriptor(),
+                    MAX_IMAGE_RESOLUTION, MAX_IMAGE_RESOLUTION, Bitmap.Config.RGB_565);
+            if (original == null) {
+                throw new IOException("Not a decodable image: " + uri);
+            }
+            return decodeImage(original, start);
+        } finally {
+            descriptor.close();
+        }
+    }
 
-            MultiFormatReader multiFormatReader = new MultiFormatReader();
+    /**
+     * Decode {@code original} in all formats, and recycle it.
+     */
+    private Result decodeImage(Bitmap original, long start) {
+        Result rawResult = null;
+        int width = original.getWidth();
+        int height = original.getHeight();
+        byte[] data = getLuminance(original);
+        original.recycle();
+        PlanarYUVLuminanceSource source = new PlanarYUVLuminanceSource(data, width, height, 0, 0, width, height, false);
+
+        if (source != null) {
+            BinaryBitmap bitmap = new BinaryBitmap(new ReusableHybridBinarizer(source));
+            if (multiFormatReader == null) {
+                multiFormatReader = newMultiFormatReader();
+            }
             try {
                 rawResult = multiFormatReader.decodeWithState(bitmap);
             } catch (ReaderException ignored) {
@@ -109,119 +182,120 @@ public class ImageDecoder {
         return rawResult;
     }
 
-    private static byte[] yuvs;
     /**
-     * 根据Bitmap的ARGB值生成YUV420SP数据。
+     * The luminance of every pixel of {@code bitmap}, with fixed point BT.601 weights, converted in
+     * row bands across the cores. Only the luminance plane ZXing reads is produced, no chroma.
      *
-     * @param inputWidth image width
-     * @param inputHeight image height
-     * @param scaled bmp
-     * @return YUV420SP数组
+     * @return The luminance arena, of which {@code width * height} bytes are used, valid until the
+     * next call.
      */
-    public static byte[] getYUV420sp(int inputWidth, int inputHeight, Bitmap scaled) {
-        int[] argb = new int[inputWidth * inputHeight];
-
-        scaled.getPixels(argb, 0, inputWidth, 0, 0, inputWidth, inputHeight);
-
-        /**
-         * 需要转换成偶数的像素点，否则编码YUV420的时候有可能导致分配的空间大小不够而溢出。
-         */
-        int requiredWidth = inputWidth % 2 == 0 ? inputWidth : inputWidth + 1;
-        int requiredHeight = inputHeight % 2 == 0 ? inputHeight : inputHeight + 1;
-
-        int byteLength = requiredWidth * requiredHeight * 3 / 2;
-        if (yuvs == null || yuvs.length < byteLength) {
-            yuvs = new byte[byteLength];
-        } else {
-            Arrays.fill(yuvs, (byte) 0);
+    public byte[] getLuminance(final Bitmap bitmap) {
+        final int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        if (luminances == null || luminances.length < width * height) {
+            luminances = new byte[width * height];
         }
-
-        encodeYUV420SP(yuvs, argb, inputWidth, inputHeight);
-
-        scaled.recycle();
-
-        return yuvs;
+        final byte[] out = luminances;
+        LuminanceConverter.forEachBand(width, height, new LuminanceConverter.BandAction() {
+            @Override
+            public void run(int fromRow, int toRow) {
+                int bandRows = Math.min(LUMINANCE_BAND_ROWS, toRow - fromRow);
+                int[] band = sBands.get();
+                if (band == null || band.length < width * bandRows) {
+                    band = new int[width * LUMINANCE_BAND_ROWS];
+                    sBands.set(band);
+                }
+                for (int top = fromRow; top < toRow; top += bandRows) {
+                    int rows = Math.min(bandRows, toRow - top);
+                    bitmap.getPixels(band, 0, width, 0, top, width, rows);
+                    LuminanceConverter.toLuminance(band, 0, out, top * width, width * rows);
+                }
+            }
+        });
+        return luminances;
     }
 
     /**
-     * RGB转YUV420sp
+     * Decode the image at {@code path} sampled by {@link #calculateInSampleSize}, then scaled down
+     * during the decode until the side closest to the requested size reaches it, and decoded in
+     * {@code config}, e.g. {@link Bitmap.Config#RGB_565} for a bitmap only read for its luminance.
      *
-     * @param yuv420sp inputWidth * inputHeight * 3 / 2
-     * @param argb inputWidth * inputHeight
-     * @param width image width
-     * @param height image height
+     * @return The bitmap, or null if the file is not an image.
      */
-    private static void encodeYUV420SP(byte[] yuv420sp, int[] argb, int width, int height) {
-        // 帧图片的像素大小
-        final int frameSize = width * height;
-        // ---YUV数据---
-        int Y, U, V;
-        // Y的index从0开始
-        int yIndex = 0;
-        // UV的index从frameSize开始
-        int uvIndex = frameSize;
-
-        // ---颜色数据---
-        int R, G, B;
-        int rgbIndex = 0;
-
-        // ---循环所有像素点，RGB转YUV---
-        for (int j = 0; j < height; j++) {
-            for (int i = 0; i < width; i++) {
-
-                R = (argb[rgbIndex] & 0xff0000) >> 16;
-                G = (argb[rgbIndex] & 0xff00) >> 8;
-                B = (argb[rgbIndex] & 0xff);
-                //
-                rgbIndex++;
-
-                // well known RGB to YUV algorithm
-                Y = ((66 * R + 129 * G + 25 * B + 128) >> 8) + 16;
-                U = ((-38 * R - 74 * G + 112 * B + 128) >> 8) + 128;
-                V = ((112 * R - 94 * G - 18 * B + 128) >> 8) + 128;
-
-                Y = Math.max(0, Math.min(Y, 255));
-                U = Math.max(0, Math.min(U, 255));
-                V = Math.max(0, Math.min(V, 255));
-
-                // NV21 has a plane of Y and interleaved planes of VU each sampled by a factor of 2
-                // meaning for every 4 Y pixels there are 1 V and 1 U. Note the sampling is every other
-                // pixel AND every other scan line.
-                // ---Y---
-                yuv420sp[yIndex++] = (byte) Y;
-                // ---UV---
-                if ((j % 2 == 0) && (i % 2 == 0)) {
-                    //
-                    yuv420sp[uvIndex++] = (byte) V;
-                    //
-                    yuv420sp[uvIndex++] = (byte) U;
-                }
-            }
+    static public Bitmap decodeScaledBitmap(String path, int width, int height, Bitmap.Config config) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, options);
+        if (!setTargetSize(options, width, height, config, null)) {
+            return null;
         }
+        return BitmapFactory.decodeFile(path, options);
     }
 
-    static public Bitmap decodeSampledBitmap(String path) {
-        return decodeSampledBitmap(path, MAX_IMAGE_RESOLUTION, MAX_IMAGE_RESOLUTION);
+    /**
+     * Like {@link #decodeScaledBitmap(String, int, int, Bitmap.Config)}, the bounds and the pixels
+     * both read from {@code fd}, which is left open at its position.
+     */
+    static public Bitmap decodeScaledBitmap(FileDescriptor fd, int width, int height, Bitmap.Config config) {
+        return decodeScaledBitmap(fd, width, height, config, null);
     }
 
-    static public Bitmap decodeSampledBitmap(String path, int width, int height) {
-        // First decode with inJustDecodeBounds=true to check dimensions
+    /**
+     * Like {@link #decodeScaledBitmap(FileDescriptor, int, int, Bitmap.Config)}, and hands back the
+     * size of the image before scaling.
+     *
+     * @param outSize Set to the full size of the image, 0x0 if the bounds could not be read. May be null.
+     */
+    static public Bitmap decodeScaledBitmap(FileDescriptor fd, int width, int height, Bitmap.Config config, Point outSize) {
         BitmapFactory.Options options = new BitmapFactory.Options();
-        if (width <= 0 || height <= 0) {
-            options.inJustDecodeBounds = false;
-            return BitmapFactory.decodeFile(path, options);
-        }
         options.inJustDecodeBounds = true;
-        BitmapFactory.decodeFile(path, options);
-        Log.d("Decoder", "decodeQRCode original: " + options.outWidth + "x" + options.outHeight + ", req: " + width + "x" + height);
-        // Calculate inSampleSize
-        options.inSampleSize = calculateInSampleSize(options, width, height);
-        // Decode bitmap with inSampleSize set
+        // BitmapFactory restores the position of the descriptor, no need to reopen it
+        BitmapFactory.decodeFileDescriptor(fd, null, options);
+        if (!setTargetSize(options, width, height, config, outSize)) {
+            return null;
+        }
+        return BitmapFactory.decodeFileDescriptor(fd, null, options);
+    }
+
+    /**
+     * Turn the bounds of {@code options} into a decode sampled by {@link #calculateInSampleSize}
+     * and then scaled by density down to the requested size.
+     *
+     * @return False if the bounds could not be read.
+     */
+    static private boolean setTargetSize(BitmapFactory.Options options, int reqWidth, int reqHeight, Bitmap.Config config,
+                                         Point outSize) {
+        Log.d("Decoder", "decodeQRCode original: " + options.outWidth + "x" + options.outHeight + ", req: " + reqWidth + "x" + reqHeight);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            if (outSize != null) {
+                outSize.set(0, 0);
+            }
+            return false;
+        }
+        if (outSize != null) {
+            // The second decode overwrites the bounds with the scaled size
+            outSize.set(options.outWidth, options.outHeight);
+        }
+        options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
+        int sampledWidth = options.outWidth / options.inSampleSize;
+        int sampledHeight = options.outHeight / options.inSampleSize;
+        // The side with the smaller ratio to the requested size is scaled to it, as with inSampleSize
+        if ((long) sampledWidth * reqHeight >= (long) sampledHeight * reqWidth) {
+            if (sampledHeight > reqHeight) {
+                options.inDensity = sampledHeight;
+                options.inTargetDensity = reqHeight;
+            }
+        } else if (sampledWidth > reqWidth) {
+            options.inDensity = sampledWidth;
+            options.inTargetDensity = reqWidth;
+        }
+        options.inScaled = options.inDensity != 0;
+        options.inPreferredConfig = config;
         options.inJustDecodeBounds = false;
-        return BitmapFactory.decodeFile(path, options);
+        return true;
     }
 
-    static private int calculateInSampleSize(BitmapFactory.Options options, int reqWidth, int reqHeight) {
+    static int calculateInSampleSize(BitmapFactory.Options options, int reqWidth, int reqHeight) {
         // Raw height and width of image
         int height = options.outHeight;
         int width = options.outWidth;
@@ -260,64 +334,57 @@ public class ImageDecoder {
      * Scan QR code from bitmap
      * you can convert image to bitmap and assign this function to scan
      */
-    public static String scanQRImage(Context context, Uri path) {
+    public String scanQRImage(Context context, Uri path) {
         InputStream is;
         try {
             is = new BufferedInputStream(context.getContentResolver().openInputStream(path));
-            Bitmap bitmap = BitmapFactory.decodeStream(is);
-            return scanQRImage(bitmap);
         } catch (FileNotFoundException e) {
             e.printStackTrace();
             return "";
         }
+        Bitmap bitmap;
+        try {
+            bitmap = BitmapFactory.decodeStream(is);
+        } finally {
+            try {
+                is.close();
+            } catch (IOException ignored) {
+            }
+        }
+        if (bitmap == null) {
+            return null;
+        }
+        String contents = scanQRImage(bitmap);
+        bitmap.recycle();
+        return contents;
     }
 
     /**
      * Scan QR code from bitmap
      * you can convert image to bitmap and assign this function to scan
+     *
+     * <p>The bitmap is searched at every 0.8x scale down to 200 px, in parallel, see {@link MultiScaleScanner}.
+     * It is not modified or recycled.
+     *
+     * @return The text of the code, or null if there is none.
      */
-    public static String scanQRImage(Bitmap bMap) {
-        String contents = null;
-
+    public String scanQRImage(Bitmap bMap) {
         int width = bMap.getWidth();
         int height = bMap.getHeight();
-//        Log.d("Decoder", "scanQRImage original: " + width + "x" + height);
-
-        try {
-//            if (bMap.getHeight() > 500 && bMap.getWidth() > 500)
-//                bMap = Bitmap.createScaledBitmap(bMap, bMap.getWidth() - 300, bMap.getHeight() - 300, false);
+        Log.d("Decoder", "scanQRImage original: " + width + "x" + height);
 
-            Log.d("Decoder", "scanQRImage scaled: " + width + "x" + height);
-
-            int[] intArray = new int[width * height];
-
-            //copy pixel data from the Bitmap into the 'intArray' array
-            bMap.getPixels(intArray, 0, bMap.getWidth(), 0, 0, bMap.getWidth(), bMap.getHeight());
-
-            LuminanceSource source = new RGBLuminanceSource(bMap.getWidth(), bMap.getHeight(), intArray);
-            BinaryBitmap bitmap = new BinaryBitmap(new HybridBinarizer(source));
+        // All scales are sampled from this one plane, no bitmap is scaled
+        byte[] data = getLuminance(bMap);
+        Result result = getMultiScaleScanner().scan(data, width, height);
+        return result != null ? result.getText() : null;
+    }
 
-            Reader reader = new QRCodeReader();
-            try {
-                Result result = reader.decode(bitmap, hints);
-                contents = result.getText();
-            } catch (Exception e) {
-                Log.e("Decoder", "Error decoding barcode", e);
-            }
-        } catch (Exception e) {
-            Log.e("Decoder", "Exception: " + e.getMessage());
-        } finally {
-            if (contents == null) {
-                //recurrence scale to find appropriate size
-                if (width > 200 && height > 200) {
-                    Bitmap bitmap = Bitmap.createScaledBitmap(bMap, (int) (width * 0.8f), (int) (height * 0.8f), false);
-                    bMap.recycle();
-                    contents = scanQRImage(bitmap);
-                }
-            }
+    private static synchronized MultiScaleScanner getMultiScaleScanner() {
+        if (sMultiScaleScanner == null) {
+            // Runs on the shared decode pool, the scanner is never shut down
+            sMultiScaleScanner = new MultiScaleScanner();
         }
-
-        return contents;
+        return sMultiScaleScanner;
     }
 
 }
\ No newline at end of file
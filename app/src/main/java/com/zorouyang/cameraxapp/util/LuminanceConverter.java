@@ -0,0 +1,82 @@
+package com.zorouyang.cameraxapp.util;
+
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Converts ARGB pixels to luminance, split into row bands on the {@link DecodePool}.
+ *
+ * <p>The inner loop is fixed point and branch-free: with the BT.601 weights the result can't leave
+ * a byte, so no clamp is needed. Only luminance is computed, chroma is never read by ZXing. Images
+ * below {@link #MIN_PARALLEL_PIXELS} are converted on the calling thread.
+ */
+public final class LuminanceConverter {
+
+    // Below this a hand-off to the pool costs more than the conversion
+    private static final int MIN_PARALLEL_PIXELS = 128 * 1024;
+    // Bands are split no further than this, so every task has a worthwhile share
+    private static final int MIN_BAND_ROWS = 32;
+
+    /**
+     * Converts the rows {@code [fromRow, toRow)} of an image.
+     */
+    public interface BandAction {
+        void run(int fromRow, int toRow);
+    }
+
+    private LuminanceConverter() {
+    }
+
+    /**
+     * Run {@code action} over all rows of a {@code width} x {@code height} image, in parallel bands
+     * when the image is large enough. Returns once every band is done.
+     */
+    public static void forEachBand(int width, int height, BandAction action) {
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        if (parallelism == 1 || (long) width * height < MIN_PARALLEL_PIXELS || height < 2 * MIN_BAND_ROWS) {
+            action.run(0, height);
+            return;
+        }
+        // A few bands per core, so a core that got a slow band is not waited for
+        int bandRows = Math.max(MIN_BAND_ROWS, height / (parallelism * 2));
+        DecodePool.get().invoke(new BandTask(action, 0, height, bandRows));
+    }
+
+    /**
+     * Full range BT.601 luminance of {@code count} pixels, as {@link ImageDecoder#getLuminance} computes it.
+     */
+    public static void toLuminance(int[] argb, int argbOffset, byte[] luminances, int offset, int count) {
+        for (int i = 0; i < count; i++) {
+            int pixel = argb[argbOffset + i];
+            // 77 + 150 + 29 = 256, the sum never leaves a byte
+            luminances[offset + i] = (byte) ((77 * ((pixel >> 16) & 0xff) + 150 * ((pixel >> 8) & 0xff)
+                    + 29 * (pixel & 0xff)) >> 8);
+        }
+    }
+
+    /**
+     * Splits a range of rows in halves down to single bands.
+     */
+    private static final class BandTask extends RecursiveAction {
+        private final BandAction action;
+        private final int from;
+        private final int to;
+        private final int bandRows;
+
+        BandTask(BandAction action, int from, int to, int bandRows) {
+            this.action = action;
+            this.from = from;
+            this.to = to;
+            this.bandRows = bandRows;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= bandRows) {
+                action.run(from, to);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new BandTask(action, from, middle, bandRows), new BandTask(action, middle, to, bandRows));
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.zorouyang.cameraxapp.util;
+
+import com.google.zxing.LuminanceSource;
+import com.google.zxing.PlanarYUVLuminanceSource;
+
+/**
+ * A 2x/4x downsampled luminance pyramid of a frame, built with a 2x2 box filter.
+ *
+ * <p>Level 0 is half, level 1 a quarter of the frame size. The level buffers are kept and reused
+ * for as long as the frame size does not change. Instances are not thread-safe.
+ */
+public final class LuminancePyramid {
+
+    public static final int LEVELS = 2;
+
+    private final int minDimension;
+
+    private final byte[][] levels = new byte[LEVELS][];
+    private final int[] widths = new int[LEVELS];
+    private final int[] heights = new int[LEVELS];
+    private int count;
+
+    private byte[] row0;
+    private byte[] row1;
+
+    /**
+     * @param minDimension Levels whose shorter side would be below this are not built.
+     */
+    public LuminancePyramid(int minDimension) {
+        this.minDimension = minDimension;
+    }
+
+    /**
+     * Rebuild the pyramid from {@code source}.
+     *
+     * @return The number of levels built, 0 when the frame is too small to downsample.
+     */
+    public int build(LuminanceSource source) {
+        int width = source.getWidth() / 2;
+        int height = source.getHeight() / 2;
+        count = 0;
+        if (Math.min(width, height) < minDimension) {
+            return count;
+        }
+
+        byte[] level = allocate(0, width, height);
+        int srcWidth = source.getWidth();
+        if (row0 == null || row0.length < srcWidth) {
+            row0 = new byte[srcWidth];
+            row1 = new byte[srcWidth];
+        }
+        for (int y = 0; y < height; y++) {
+            row0 = source.getRow(2 * y, row0);
+            row1 = source.getRow(2 * y + 1, row1);
+            downsampleRow(row0, 0, row1, 0, level, y * width, width);
+        }
+        count++;
+
+        for (int i = 1; i < LEVELS; i++) {
+            int srcW = widths[i - 1];
+            width = srcW / 2;
+            height = heights[i - 1] / 2;
+            if (Math.min(width, height) < minDimension) {
+                break;
+            }
+            byte[] src = levels[i - 1];
+            level = allocate(i, width, height);
+            for (int y = 0; y < height; y++) {
+                downsampleRow(src, 2 * y * srcW, src, (2 * y + 1) * srcW, level, y * width, width);
+            }
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * @return The number of levels built by the last {@link #build(LuminanceSource)}.
+     */
+    public int getLevelCount() {
+        return count;
+    }
+
+    /**
+     * @return How many frame pixels one pixel of {@code level} stands for, in each direction.
+     */
+    public static int getScale(int level) {
+        return 2 << level;
+    }
+
+    public LuminanceSource getLevel(int level) {
+        if (level >= count) {
+            throw new IllegalArgumentException("Level " + level + " was not built");
+        }
+        int width = widths[level];
+        int height = heights[level];
+        return new PlanarYUVLuminanceSource(levels[level], width, height, 0, 0, width, height, false);
+    }
+
+    private byte[] allocate(int level, int width, int height) {
+        if (levels[level] == null || widths[level] != width || heights[level] != height) {
+            levels[level] = new byte[width * height];
+            widths[level] = width;
+            heights[level] = height;
+        }
+        return levels[level];
+    }
+
+    private static void downsampleRow(byte[] top, int topOffset, byte[] bottom, int bottomOffset,
+                                      byte[] dst, int dstOffset, int width) {
+        for (int x = 0; x < width; x++) {
+            int i = 2 * x;
+            int sum = (top[topOffset + i] & 0xff) + (top[topOffset + i + 1] & 0xff)
+                    + (bottom[bottomOffset + i] & 0xff) + (bottom[bottomOffset + i + 1] & 0xff);
+            dst[dstOffset + x] = (byte) ((sum + 2) >> 2);
+        }
+    }
+}
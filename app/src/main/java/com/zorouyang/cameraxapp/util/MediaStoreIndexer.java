@@ -0,0 +1,305 @@
+package com.zorouyang.cameraxapp.util;
+
+import android.content.ContentUris;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.MediaStore;
+import android.util.Log;
+import android.util.LongSparseArray;
+import com.google.zxing.Result;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Walks {@link MediaStore.Images} in pages of {@link #PAGE_SIZE} and decodes every new or changed
+ * image into a {@link CodeIndex}, in the background.
+ *
+ * <p>Pages are read in {@code _ID} order, each page starting after the last {@code _ID} of the one
+ * before, so the walk never holds more than a page and is not thrown off by images added while it
+ * runs. An image is decoded only when its {@code _ID} is not in the index yet or its
+ * {@code DATE_MODIFIED} changed, a later run only pays for the difference. The images of a page
+ * are decoded on a pool of workers, each with its own {@link ImageDecoder}, and the page is
+ * written to the index in one transaction.
+ *
+ * <p>Images are read through their content URI, not their {@code _data} path, which apps can't
+ * open under scoped storage. An image that can't be opened or decoded is not written to the
+ * index, so the next walk tries it again.
+ */
+public final class MediaStoreIndexer {
+
+    private static final String TAG = MediaStoreIndexer.class.getSimpleName();
+
+    public static final int PAGE_SIZE = 64;
+
+    private static final String[] PROJECTION = {
+            MediaStore.Images.Media._ID,
+            MediaStore.Images.Media.DATE_MODIFIED,
+            // Only kept to show with search results, the images are read through their URI
+            MediaStore.Images.Media.DATA
+    };
+
+    private final Context context;
+    private final CodeIndex index;
+    private final ThreadPoolExecutor executor;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private final ThreadLocal<ImageDecoder> decoders = new ThreadLocal<ImageDecoder>() {
+        @Override
+        protected ImageDecoder initialValue() {
+            return new ImageDecoder();
+        }
+    };
+
+    private Thread walker;
+    private volatile boolean cancelled;
+
+    public interface Listener {
+        /**
+         * Called on the main thread after every page.
+         *
+         * @param scanned How many images were looked at.
+         * @param decoded How many of them were new or changed and decoded.
+         * @param found   How many of the decoded images have a code.
+         */
+        void onProgress(int scanned, int decoded, int found);
+
+        /**
+         * Called on the main thread once the walk is over.
+         */
+        void onFinished(int scanned, int decoded, int found, boolean cancelled);
+    }
+
+    /**
+     * @return The default number of workers: one per core, but no more images at once than
+     * {@link BatchImageDecoder#defaultMaxBitmaps()} allows.
+     */
+    public static int defaultThreadCount() {
+        return Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), BatchImageDecoder.defaultMaxBitmaps()));
+    }
+
+    public MediaStoreIndexer(Context context, CodeIndex index, int threadCount) {
+        this.context = context.getApplicationContext();
+        this.index = index;
+        this.executor = new ThreadPoolExecutor(threadCount, threadCount, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, "IndexWorker-" + count.getAndIncrement());
+            }
+        });
+    }
+
+    /**
+     * Start a walk over the MediaStore, unless one is running.
+     *
+     * @return Whether a walk was started.
+     */
+    public synchronized boolean start(final Listener listener) {
+        if (walker != null && walker.isAlive()) {
+            return false;
+        }
+        cancelled = false;
+        walker = new Thread("MediaStoreIndexer") {
+            @Override
+            public void run() {
+                walk(listener);
+            }
+        };
+        walker.start();
+        return true;
+    }
+
+    /**
+     * Stop the walk after the images being decoded, the pages written so far are kept.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Cancel the walk, stop the workers and wait for the walk to end, so the index can be closed
+     * after this returns.
+     */
+    public void shutdown() {
+        cancel();
+        executor.shutdownNow();
+        Thread walker;
+        synchronized (this) {
+            walker = this.walker;
+        }
+        if (walker == null) {
+            return;
+        }
+        // Waiting on the futures of images the workers dropped, the walk needs a nudge
+        walker.interrupt();
+        boolean interrupted = false;
+        while (walker.isAlive()) {
+            try {
+                walker.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void walk(final Listener listener) {
+        long start = System.nanoTime();
+        long[] ids = new long[PAGE_SIZE];
+        long[] dates = new long[PAGE_SIZE];
+        String[] paths = new String[PAGE_SIZE];
+        List<Future<CodeIndex.Entry>> futures = new ArrayList<>(PAGE_SIZE);
+        List<CodeIndex.Entry> entries = new ArrayList<>(PAGE_SIZE);
+        int scanned = 0;
+        int decoded = 0;
+        int found = 0;
+
+        long afterId = -1;
+        try {
+            while (!cancelled) {
+                int count = readPage(afterId, ids, dates, paths);
+                if (count < 0) {
+                    break;
+                }
+                if (count == 0) {
+                    index.deleteAfter(afterId);
+                    break;
+                }
+
+                LongSparseArray<Long> indexed = index.getDateModified(afterId, ids[count - 1]);
+                futures.clear();
+                for (int i = 0; i < count; i++) {
+                    Long indexedDate = indexed.get(ids[i]);
+                    if (indexedDate == null || indexedDate != dates[i]) {
+                        futures.add(executor.submit(new DecodeTask(ids[i], dates[i], paths[i])));
+                    }
+                }
+                entries.clear();
+                for (Future<CodeIndex.Entry> future : futures) {
+                    CodeIndex.Entry entry = future.get();
+                    if (entry != null) {
+                        entries.add(entry);
+                    }
+                }
+                if (cancelled) {
+                    // Images skipped on cancellation must not be indexed as without a code
+                    break;
+                }
+                index.writePage(afterId, ids, count, entries);
+                scanned += count;
+                decoded += entries.size();
+                for (CodeIndex.Entry entry : entries) {
+                    if (entry.text != null) {
+                        found++;
+                    }
+                }
+                postProgress(listener, scanned, decoded, found);
+
+                afterId = ids[count - 1];
+                if (count < PAGE_SIZE) {
+                    index.deleteAfter(afterId);
+                    break;
+                }
+            }
+        } catch (InterruptedException | ExecutionException | RuntimeException e) {
+            // Shut down, or the MediaStore or index went away
+            Log.w(TAG, "Walk stopped after " + scanned + " images", e);
+            cancelled = true;
+        }
+
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        Log.d(TAG, "Walk finished in " + elapsed + " ms: " + scanned + " images, " + decoded + " decoded, "
+                + found + " with a code, " + (decoded == 0 ? 0 : elapsed / decoded) + " ms per decode");
+        final int scannedTotal = scanned;
+        final int decodedTotal = decoded;
+        final int foundTotal = found;
+        final boolean wasCancelled = cancelled;
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onFinished(scannedTotal, decodedTotal, foundTotal, wasCancelled);
+            }
+        });
+    }
+
+    /**
+     * @return How many images were read into the arrays, or -1 if the MediaStore can't be queried.
+     */
+    private int readPage(long afterId, long[] ids, long[] dates, String[] paths) {
+        Cursor cursor = GalleryPhotoUtil.queryImages(context, afterId, PROJECTION, PAGE_SIZE);
+        if (cursor == null) {
+            return -1;
+        }
+        try {
+            int count = 0;
+            while (count < PAGE_SIZE && cursor.moveToNext()) {
+                ids[count] = cursor.getLong(0);
+                dates[count] = cursor.getLong(1);
+                paths[count] = cursor.getString(2);
+                count++;
+            }
+            return count;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void postProgress(final Listener listener, final int scanned, final int decoded, final int found) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onProgress(scanned, decoded, found);
+            }
+        });
+    }
+
+    /**
+     * Decodes one image into its index entry, or into null if it can't be read now.
+     */
+    private final class DecodeTask implements Callable<CodeIndex.Entry> {
+        private final long id;
+        private final long dateModified;
+        private final String path;
+
+        DecodeTask(long id, long dateModified, String path) {
+            this.id = id;
+            this.dateModified = dateModified;
+            this.path = path;
+        }
+
+        @Override
+        public CodeIndex.Entry call() {
+            if (cancelled) {
+                return null;
+            }
+            Uri uri = ContentUris.withAppendedId(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, id);
+            Result result;
+            try {
+                result = decoders.get().decodeImage(context.getContentResolver(), uri);
+            } catch (IOException | RuntimeException e) {
+                // Not indexed, a later walk tries again
+                Log.w(TAG, "Failed to decode " + uri, e);
+                return null;
+            }
+            return result == null ? new CodeIndex.Entry(id, dateModified, path, null, null)
+                    : new CodeIndex.Entry(id, dateModified, path, result.getBarcodeFormat().name(), result.getText());
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package com.zorouyang.cameraxapp.util;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.BinaryBitmap;
+import com.google.zxing.DecodeHintType;
+import com.google.zxing.MultiFormatReader;
+import com.google.zxing.NotFoundException;
+import com.google.zxing.Reader;
+import com.google.zxing.ReaderException;
+import com.google.zxing.Result;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Decodes several barcode formats with reused, pre-hinted {@link MultiFormatReader}s.
+ *
+ * <p>Every 2D format gets a reader of its own, which is what lets each attempt be timed and
+ * reported to a {@link FormatCostTracker}. The 1D formats share one reader, so the rows of the
+ * image are scanned once for all of them as ZXing does, and are timed as a single bucket. All
+ * readers work on the same {@link BinaryBitmap}, so the matrix of a frame is binarized only once.
+ * As a {@link Reader} it can also drive ZXing's multiple barcode reader. Instances are not
+ * thread-safe, every decoding thread needs its own.
+ */
+public final class MultiFormatEngine implements Reader {
+
+    /**
+     * The formats read row by row, by the one shared 1D reader.
+     */
+    public static final Set<BarcodeFormat> ONE_D_FORMATS = Collections.unmodifiableSet(EnumSet.of(
+            BarcodeFormat.CODABAR, BarcodeFormat.CODE_39, BarcodeFormat.CODE_93, BarcodeFormat.CODE_128,
+            BarcodeFormat.EAN_8, BarcodeFormat.EAN_13, BarcodeFormat.ITF, BarcodeFormat.RSS_14,
+            BarcodeFormat.RSS_EXPANDED, BarcodeFormat.UPC_A, BarcodeFormat.UPC_E));
+
+    // The format of every reader, null for the 1D reader
+    private final BarcodeFormat[] formats;
+    private final MultiFormatReader[] readers;
+    private final BarcodeFormat[] oneDFormats;
+    private final FormatCostTracker tracker;
+    // The 1D formats the 1D reader is hinted with, one bit per ordinal
+    private int oneDHinted = -1;
+
+    public MultiFormatEngine(Collection<BarcodeFormat> formats, FormatCostTracker tracker) {
+        List<BarcodeFormat> readable = new ArrayList<>();
+        List<BarcodeFormat> oneD = new ArrayList<>();
+        for (BarcodeFormat format : formats) {
+            if (ONE_D_FORMATS.contains(format)) {
+                // The 1D reader takes the place of the first 1D format
+                if (oneD.isEmpty()) {
+                    readable.add(null);
+                }
+                oneD.add(format);
+            } else if (format != BarcodeFormat.UPC_EAN_EXTENSION) {
+                // The extension is only read as part of a UPC/EAN code, hinted alone
+                // MultiFormatReader would fall back to every format
+                readable.add(format);
+            }
+        }
+
+        this.formats = readable.toArray(new BarcodeFormat[0]);
+        this.readers = new MultiFormatReader[this.formats.length];
+        this.oneDFormats = oneD.toArray(new BarcodeFormat[0]);
+        this.tracker = tracker;
+
+        for (int i = 0; i < this.formats.length; i++) {
+            readers[i] = new MultiFormatReader();
+            if (this.formats[i] != null) {
+                readers[i].setHints(newHints(Collections.singletonList(this.formats[i])));
+            }
+        }
+    }
+
+    private static Map<DecodeHintType, Object> newHints(Collection<BarcodeFormat> formats) {
+        Map<DecodeHintType, Object> hints = new EnumMap<>(DecodeHintType.class);
+        hints.put(DecodeHintType.CHARACTER_SET, "utf-8");
+        hints.put(DecodeHintType.TRY_HARDER, Boolean.TRUE);
+        hints.put(DecodeHintType.POSSIBLE_FORMATS, formats);
+        return hints;
+    }
+
+    /**
+     * Try every enabled 2D format in turn, and the enabled 1D formats together.
+     *
+     * @return The first result.
+     * @throws NotFoundException If none of the formats was found.
+     */
+    @Override
+    public Result decode(BinaryBitmap bitmap) throws NotFoundException {
+        for (int i = 0; i < formats.length; i++) {
+            BarcodeFormat format = formats[i];
+            if (format == null ? !hintOneDReader(readers[i]) : !tracker.isEnabled(format)) {
+                continue;
+            }
+
+            Result rawResult = null;
+            long start = System.nanoTime();
+            try {
+                rawResult = readers[i].decodeWithState(bitmap);
+            } catch (ReaderException ignored) {
+            } finally {
+                readers[i].reset();
+            }
+            long elapsed = System.nanoTime() - start;
+            if (format == null) {
+                tracker.recordOneD(elapsed, rawResult != null ? rawResult.getBarcodeFormat() : null);
+            } else {
+                tracker.record(format, elapsed, rawResult != null);
+            }
+
+            if (rawResult != null) {
+                return rawResult;
+            }
+        }
+        throw NotFoundException.getNotFoundInstance();
+    }
+
+    /**
+     * Hint {@code reader} with the 1D formats enabled now, if they changed since the last decode.
+     *
+     * @return Whether any 1D format is enabled.
+     */
+    private boolean hintOneDReader(MultiFormatReader reader) {
+        int enabled = 0;
+        for (BarcodeFormat format : oneDFormats) {
+            if (tracker.isEnabled(format)) {
+                enabled |= 1 << format.ordinal();
+            }
+        }
+        if (enabled != 0 && enabled != oneDHinted) {
+            List<BarcodeFormat> hinted = new ArrayList<>(oneDFormats.length);
+            for (BarcodeFormat format : oneDFormats) {
+                if ((enabled & (1 << format.ordinal())) != 0) {
+                    hinted.add(format);
+                }
+            }
+            reader.setHints(newHints(hinted));
+            oneDHinted = enabled;
+        }
+        return enabled != 0;
+    }
+
+    /**
+     * The readers were hinted up front, {@code hints} are ignored.
+     */
+    @Override
+    public Result decode(BinaryBitmap bitmap, Map<DecodeHintType, ?> hints) throws NotFoundException {
+        return decode(bitmap);
+    }
+
+    @Override
+    public void reset() {
+        // Each reader is reset after its attempt
+    }
+
+    public FormatCostTracker getTracker() {
+        return tracker;
+    }
+}
@@ -0,0 +1,266 @@
+package com.zorouyang.cameraxapp.util;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.BinaryBitmap;
+import com.google.zxing.DecodeHintType;
+import com.google.zxing.LuminanceSource;
+import com.google.zxing.ReaderException;
+import com.google.zxing.Result;
+import com.google.zxing.qrcode.QRCodeReader;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Searches an image for a QR code at a series of scales, each {@link #SCALE_STEP} of the one
+ * before, down to {@link #MIN_DIMENSION}, in parallel on the {@link DecodePool}.
+ *
+ * <p>Every scale is sampled on the fly from the one luminance plane of the image, nearest
+ * neighbour, into a buffer of the pool thread; no bitmap is allocated per scale. Scales are started
+ * in the order of how often they found a code so far, full size first at the start, and the first
+ * hit skips the scales not started yet. Thread-safe, one scanner may serve several decoders.
+ */
+public final class MultiScaleScanner {
+
+    public static final float SCALE_STEP = 0.8f;
+    // Scales are tried while both sides of the scale before were larger than this
+    public static final int MIN_DIMENSION = 200;
+    // 0.8^32 is below 1/1000, no image has more scales worth trying
+    private static final int MAX_SCALES = 32;
+
+    // Not tied to a scanner, the pool threads outlive the scanners
+    private static final ThreadLocal<Workspace> sWorkspaces = new ThreadLocal<Workspace>() {
+        @Override
+        protected Workspace initialValue() {
+            return new Workspace();
+        }
+    };
+
+    private final Map<DecodeHintType, Object> hints = new EnumMap<>(DecodeHintType.class);
+    private final AtomicIntegerArray scaleHits = new AtomicIntegerArray(MAX_SCALES);
+    private volatile boolean shutdown;
+
+    private final AtomicLong scans = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong scalesDecoded = new AtomicLong();
+    private final AtomicLong scalesSkipped = new AtomicLong();
+
+    public MultiScaleScanner() {
+        hints.put(DecodeHintType.CHARACTER_SET, "utf-8");
+        hints.put(DecodeHintType.TRY_HARDER, Boolean.TRUE);
+        hints.put(DecodeHintType.POSSIBLE_FORMATS, BarcodeFormat.QR_CODE);
+    }
+
+    /**
+     * Search {@code luminances} at every scale.
+     *
+     * @param luminances The image, {@code width * height} bytes, not modified.
+     * @return The result in the coordinates of the scale it was found at, or null if no scale held a code.
+     */
+    public Result scan(byte[] luminances, int width, int height) {
+        if (shutdown) {
+            return null;
+        }
+        scans.incrementAndGet();
+        int[] sizes = new int[MAX_SCALES * 2];
+        int count = 0;
+        int scaledWidth = width;
+        int scaledHeight = height;
+        while (count < MAX_SCALES) {
+            sizes[count * 2] = scaledWidth;
+            sizes[count * 2 + 1] = scaledHeight;
+            count++;
+            if (scaledWidth <= MIN_DIMENSION || scaledHeight <= MIN_DIMENSION) {
+                break;
+            }
+            scaledWidth = (int) (scaledWidth * SCALE_STEP);
+            scaledHeight = (int) (scaledHeight * SCALE_STEP);
+        }
+
+        Search search = new Search(luminances, width, height);
+        List<Callable<Void>> tasks = new ArrayList<>(count);
+        for (int scale : order(count)) {
+            tasks.add(new ScaleTask(search, scale, sizes[scale * 2], sizes[scale * 2 + 1]));
+        }
+        DecodePool.get().invokeAll(tasks);
+
+        Result rawResult = search.found.get();
+        if (rawResult != null) {
+            hits.incrementAndGet();
+        }
+        return rawResult;
+    }
+
+    /**
+     * Stop starting scales, scans after this find nothing.
+     */
+    public void shutdown() {
+        shutdown = true;
+    }
+
+    /**
+     * @return The first {@code count} scales, the ones with the most hits first, larger ones first on a tie.
+     */
+    private int[] order(int count) {
+        int[] order = new int[count];
+        int[] scaleHits = new int[count];
+        for (int i = 0; i < count; i++) {
+            scaleHits[i] = this.scaleHits.get(i);
+            // Insertion sort, a stable one over a few dozen scales at most
+            int j = i;
+            while (j > 0 && scaleHits[order[j - 1]] < scaleHits[i]) {
+                order[j] = order[j - 1];
+                j--;
+            }
+            order[j] = i;
+        }
+        return order;
+    }
+
+    private void decodeScale(Search search, int scale, int width, int height) {
+        if (shutdown || search.found.get() != null) {
+            scalesSkipped.incrementAndGet();
+            return;
+        }
+        scalesDecoded.incrementAndGet();
+
+        Workspace workspace = sWorkspaces.get();
+        LuminanceSource source = new ScaledLuminanceSource(search, width, height, workspace);
+        BinaryBitmap bitmap = new BinaryBitmap(new ReusableHybridBinarizer(source));
+        try {
+            Result rawResult = workspace.reader.decode(bitmap, hints);
+            if (search.found.compareAndSet(null, rawResult)) {
+                scaleHits.incrementAndGet(scale);
+            }
+        } catch (ReaderException ignored) {
+        } finally {
+            workspace.reader.reset();
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder scaleHits = new StringBuilder();
+        for (int i = 0; i < MAX_SCALES && this.scaleHits.get(i) > 0; i++) {
+            scaleHits.append(i == 0 ? "" : ",").append(this.scaleHits.get(i));
+        }
+        return "MultiScaleScanner{scans=" + scans.get()
+                + ", hits=" + hits.get() + ", scaleHits=[" + scaleHits + "], scalesDecoded=" + scalesDecoded.get()
+                + ", scalesSkipped=" + scalesSkipped.get() + "}";
+    }
+
+    /**
+     * One image being searched, shared by its scale tasks.
+     */
+    private static final class Search {
+        final byte[] luminances;
+        final int width;
+        final int height;
+        final AtomicReference<Result> found = new AtomicReference<>();
+
+        Search(byte[] luminances, int width, int height) {
+            this.luminances = luminances;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    private final class ScaleTask implements Callable<Void> {
+        private final Search search;
+        private final int scale;
+        private final int width;
+        private final int height;
+
+        ScaleTask(Search search, int scale, int width, int height) {
+            this.search = search;
+            this.scale = scale;
+            this.width = width;
+            this.height = height;
+        }
+
+        @Override
+        public Void call() {
+            decodeScale(search, scale, width, height);
+            return null;
+        }
+    }
+
+    /**
+     * One scale of the image, sampled nearest neighbour from its luminances on demand.
+     */
+    private static final class ScaledLuminanceSource extends LuminanceSource {
+        private final Search search;
+        private final Workspace workspace;
+        // The source column of every column of the scale
+        private final int[] columns;
+
+        ScaledLuminanceSource(Search search, int width, int height, Workspace workspace) {
+            super(width, height);
+            this.search = search;
+            this.workspace = workspace;
+            this.columns = workspace.columns(width);
+            for (int x = 0; x < width; x++) {
+                columns[x] = (int) ((long) x * search.width / width);
+            }
+        }
+
+        @Override
+        public byte[] getRow(int y, byte[] row) {
+            int width = getWidth();
+            if (row == null || row.length < width) {
+                row = new byte[width];
+            }
+            byte[] luminances = search.luminances;
+            int offset = (int) ((long) y * search.height / getHeight()) * search.width;
+            for (int x = 0; x < width; x++) {
+                row[x] = luminances[offset + columns[x]];
+            }
+            return row;
+        }
+
+        @Override
+        public byte[] getMatrix() {
+            int width = getWidth();
+            int height = getHeight();
+            byte[] matrix = workspace.matrix(width * height);
+            byte[] luminances = search.luminances;
+            for (int y = 0; y < height; y++) {
+                int offset = (int) ((long) y * search.height / height) * search.width;
+                int target = y * width;
+                for (int x = 0; x < width; x++) {
+                    matrix[target + x] = luminances[offset + columns[x]];
+                }
+            }
+            return matrix;
+        }
+    }
+
+    /**
+     * The reader and scale buffers of one pool thread, ZXing readers are not thread-safe.
+     */
+    private static final class Workspace {
+        final QRCodeReader reader = new QRCodeReader();
+        private byte[] matrix = new byte[0];
+        private int[] columns = new int[0];
+
+        byte[] matrix(int size) {
+            if (matrix.length < size) {
+                matrix = new byte[size];
+            }
+            return matrix;
+        }
+
+        int[] columns(int size) {
+            if (columns.length < size) {
+                columns = new int[size];
+            }
+            return columns;
+        }
+    }
+}
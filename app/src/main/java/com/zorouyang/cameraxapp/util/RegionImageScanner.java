@@ -0,0 +1,365 @@
+package com.zorouyang.cameraxapp.util;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.util.Log;
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.BinaryBitmap;
+import com.google.zxing.DecodeHintType;
+import com.google.zxing.LuminanceSource;
+import com.google.zxing.ReaderException;
+import com.google.zxing.Result;
+import com.google.zxing.common.HybridBinarizer;
+import com.google.zxing.multi.qrcode.QRCodeMultiReader;
+import com.google.zxing.qrcode.QRCodeReader;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decodes very large images at full resolution, as a grid of overlapping tiles streamed from the
+ * file with {@link BitmapRegionDecoder} and decoded in parallel on the {@link DecodePool}.
+ *
+ * <p>{@link ImageDecoder#decodeScaledBitmap} scales every image down to about
+ * {@link ImageDecoder#MAX_IMAGE_RESOLUTION}, which loses small codes in large photos and scanned
+ * documents. Here the image is never loaded whole: up to {@code parallelism} lanes work through the
+ * tiles, each decoding one tile at a time into a reused tile bitmap and luminance buffer. Scans
+ * take turns, each already spreads over the pool, so memory is bounded by the parallelism and the
+ * tile size, not by the image size or the number of callers. Tiles overlap by a third, any code up
+ * to that size lies whole in at least one tile; larger codes are left to the sampled decode.
+ *
+ * <p>A scan stops at the first code found, or in exhaustive mode collects every code of every
+ * tile. Tiles are decoded as QR codes. Thread-safe, one scanner may serve several decoders.
+ */
+public final class RegionImageScanner {
+
+    private static final String TAG = RegionImageScanner.class.getSimpleName();
+
+    public static final int DEFAULT_TILE_SIZE = 1024;
+
+    private final int parallelism;
+    private final int tileSize;
+    private final int overlap;
+    private final Map<DecodeHintType, Object> hints = new EnumMap<>(DecodeHintType.class);
+
+    // One per lane of a scan, kept for the following scans
+    private final ConcurrentLinkedQueue<Workspace> workspaces = new ConcurrentLinkedQueue<>();
+    private final Object scanLock = new Object();
+    private volatile boolean shutdown;
+
+    private final AtomicLong scans = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong tilesDecoded = new AtomicLong();
+    private final AtomicLong tilesSkipped = new AtomicLong();
+
+    /**
+     * @return The default parallelism: one lane per core, but no more tile buffers than fit in a
+     * quarter of the heap.
+     */
+    public static int defaultParallelism() {
+        // A tile bitmap at two bytes a pixel, plus the luminances
+        long bytesPerLane = 3L * DEFAULT_TILE_SIZE * DEFAULT_TILE_SIZE;
+        return (int) Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(),
+                Runtime.getRuntime().maxMemory() / 4 / bytesPerLane));
+    }
+
+    /**
+     * @param parallelism The most tiles decoded at once, e.g. {@link #defaultParallelism()}.
+     * @param tileSize    The side in pixels of a tile, e.g. {@link #DEFAULT_TILE_SIZE}.
+     */
+    public RegionImageScanner(int parallelism, int tileSize) {
+        this.parallelism = parallelism;
+        this.tileSize = tileSize;
+        this.overlap = tileSize / 3;
+
+        hints.put(DecodeHintType.CHARACTER_SET, "utf-8");
+        hints.put(DecodeHintType.TRY_HARDER, Boolean.TRUE);
+        hints.put(DecodeHintType.POSSIBLE_FORMATS, BarcodeFormat.QR_CODE);
+    }
+
+    /**
+     * @return Whether an image of this size loses resolution in {@link ImageDecoder#decodeScaledBitmap},
+     * smaller images have nothing to gain from a scan.
+     */
+    public static boolean isDownsampled(int width, int height) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.outWidth = width;
+        options.outHeight = height;
+        // Images not sampled are still scaled down to the maximum resolution on their shorter side
+        return ImageDecoder.calculateInSampleSize(options,
+                ImageDecoder.MAX_IMAGE_RESOLUTION, ImageDecoder.MAX_IMAGE_RESOLUTION) > 1
+                || Math.min(width, height) > ImageDecoder.MAX_IMAGE_RESOLUTION;
+    }
+
+    /**
+     * Decode the image read from {@code fd} tile by tile, at full resolution.
+     *
+     * @param fd         The image, seekable and open until the scan returns.
+     * @param width      The full width of the image, as read with its bounds for the sampled decode.
+     * @param height     The full height of the image.
+     * @param exhaustive Whether to decode every tile and collect every code, instead of stopping at the first.
+     * @return The codes found, in full resolution image coordinates, empty if none or if the image
+     * is not {@link #isDownsampled downsampled} or can't be decoded by regions.
+     */
+    public List<Result> scan(FileDescriptor fd, int width, int height, boolean exhaustive) {
+        return scan(new Scan(fd, exhaustive), width, height);
+    }
+
+    private List<Result> scan(Scan scan, int width, int height) {
+        // Checked before any region decoder is opened, most images are not large enough
+        if (!isDownsampled(width, height)) {
+            return Collections.emptyList();
+        }
+
+        long start = System.nanoTime();
+        scans.incrementAndGet();
+        int[] tiles = layout(width, height);
+        int laneCount = Math.min(parallelism, tiles.length / 4);
+        AtomicInteger next = new AtomicInteger();
+        List<Lane> lanes = new ArrayList<>(laneCount);
+        for (int i = 0; i < laneCount; i++) {
+            lanes.add(new Lane(scan, tiles, next));
+        }
+        try {
+            synchronized (scanLock) {
+                if (shutdown) {
+                    return Collections.emptyList();
+                }
+                DecodePool.get().invokeAll(lanes);
+            }
+        } finally {
+            scan.recycle();
+        }
+
+        List<Result> results = SpatialDeduplicator.dedupe(scan.results.toArray(new Result[0]));
+        if (!results.isEmpty()) {
+            hits.incrementAndGet();
+        }
+        Log.d(TAG, "Scanned " + width + "x" + height + " in " + tiles.length / 4
+                + " tiles, " + results.size() + " codes in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        return results;
+    }
+
+    /**
+     * Stop starting tiles, scans after this find nothing.
+     */
+    public void shutdown() {
+        shutdown = true;
+        workspaces.clear();
+    }
+
+    /**
+     * @return The tiles covering an image, as left, top, width, height quadruples.
+     */
+    private int[] layout(int width, int height) {
+        int tileWidth = Math.min(tileSize, width);
+        int tileHeight = Math.min(tileSize, height);
+        int step = tileSize - overlap;
+        int columns = width <= tileWidth ? 1 : (width - tileWidth + step - 1) / step + 1;
+        int rows = height <= tileHeight ? 1 : (height - tileHeight + step - 1) / step + 1;
+        int[] tiles = new int[columns * rows * 4];
+        int i = 0;
+        for (int row = 0; row < rows; row++) {
+            // The last row and column are flush with the image edge
+            int top = Math.min(row * step, height - tileHeight);
+            for (int column = 0; column < columns; column++) {
+                tiles[i++] = Math.min(column * step, width - tileWidth);
+                tiles[i++] = top;
+                tiles[i++] = tileWidth;
+                tiles[i++] = tileHeight;
+            }
+        }
+        return tiles;
+    }
+
+    private void decodeTile(Scan scan, int[] tiles, int index, Workspace workspace) {
+        if (shutdown || scan.done.get()) {
+            tilesSkipped.incrementAndGet();
+            return;
+        }
+        int left = tiles[index * 4];
+        int top = tiles[index * 4 + 1];
+        int width = tiles[index * 4 + 2];
+        int height = tiles[index * 4 + 3];
+
+        BitmapRegionDecoder regionDecoder = scan.acquire();
+        if (regionDecoder == null) {
+            tilesSkipped.incrementAndGet();
+            return;
+        }
+        Bitmap tile;
+        try {
+            workspace.rect.set(left, top, left + width, top + height);
+            // The tile bitmap is at least as large as any tile, pixels outside the region are stale and never read
+            tile = regionDecoder.decodeRegion(workspace.rect, workspace.options);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Failed to decode region " + workspace.rect + " of " + scan.fd, e);
+            tile = null;
+        } finally {
+            scan.release(regionDecoder);
+        }
+        if (tile == null) {
+            tilesSkipped.incrementAndGet();
+            return;
+        }
+        tilesDecoded.incrementAndGet();
+
+        // Only the decoded region of the reused tile bitmap, read a row at a time
+        LuminanceSource source = new BitmapLuminanceSource(tile, 0, 0, width, height, workspace.luminances);
+
+        if (scan.exhaustive) {
+            // The multi readers crop the bitmap and come back to it, so it can't share the reusable matrices
+            BinaryBitmap bitmap = new BinaryBitmap(new HybridBinarizer(source));
+            try {
+                for (Result rawResult : workspace.multiReader.decodeMultiple(bitmap, hints)) {
+                    scan.results.add(Decoder.transformResult(rawResult, 1, left, top));
+                }
+            } catch (ReaderException ignored) {
+            } finally {
+                workspace.multiReader.reset();
+            }
+        } else {
+            BinaryBitmap bitmap = new BinaryBitmap(new ReusableHybridBinarizer(source));
+            try {
+                Result rawResult = workspace.reader.decode(bitmap, hints);
+                if (scan.done.compareAndSet(false, true)) {
+                    scan.results.add(Decoder.transformResult(rawResult, 1, left, top));
+                }
+            } catch (ReaderException ignored) {
+            } finally {
+                workspace.reader.reset();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "RegionImageScanner{parallelism=" + parallelism + ", tileSize=" + tileSize
+                + ", scans=" + scans.get() + ", hits=" + hits.get() + ", tilesDecoded=" + tilesDecoded.get()
+                + ", tilesSkipped=" + tilesSkipped.get() + "}";
+    }
+
+    /**
+     * One image being scanned, shared by its tile tasks.
+     */
+    private static final class Scan {
+        final FileDescriptor fd;
+        final boolean exhaustive;
+        final ConcurrentLinkedQueue<Result> results = new ConcurrentLinkedQueue<>();
+        // Set by the first hit, or when the image can't be read any further
+        final AtomicBoolean done = new AtomicBoolean();
+        // A region decoder decodes one region at a time, so every tile in flight takes its own
+        private final ConcurrentLinkedQueue<BitmapRegionDecoder> idle = new ConcurrentLinkedQueue<>();
+        private final List<BitmapRegionDecoder> all = Collections.synchronizedList(new ArrayList<BitmapRegionDecoder>());
+        private final Object openLock = new Object();
+
+        Scan(FileDescriptor fd, boolean exhaustive) {
+            this.fd = fd;
+            this.exhaustive = exhaustive;
+        }
+
+        /**
+         * @return An idle region decoder, or a new one, or null if the image can't be opened.
+         */
+        BitmapRegionDecoder acquire() {
+            BitmapRegionDecoder regionDecoder = idle.poll();
+            if (regionDecoder != null) {
+                return regionDecoder;
+            }
+            // Opening reads the image through the descriptor, whose file position every lane shares,
+            // so the lanes open their decoders one at a time
+            synchronized (openLock) {
+                if (done.get()) {
+                    return null;
+                }
+                try {
+                    regionDecoder = BitmapRegionDecoder.newInstance(fd, false);
+                } catch (IOException e) {
+                    Log.w(TAG, "No region decoder for " + fd, e);
+                    done.set(true);
+                    return null;
+                }
+            }
+            all.add(regionDecoder);
+            return regionDecoder;
+        }
+
+        void release(BitmapRegionDecoder regionDecoder) {
+            idle.add(regionDecoder);
+        }
+
+        void recycle() {
+            synchronized (all) {
+                for (BitmapRegionDecoder regionDecoder : all) {
+                    regionDecoder.recycle();
+                }
+                all.clear();
+            }
+            idle.clear();
+        }
+    }
+
+    /**
+     * Decodes the tiles of a scan one after the other, taking the next one left, with one workspace.
+     */
+    private final class Lane implements Callable<Void> {
+        private final Scan scan;
+        private final int[] tiles;
+        private final AtomicInteger next;
+
+        Lane(Scan scan, int[] tiles, AtomicInteger next) {
+            this.scan = scan;
+            this.tiles = tiles;
+            this.next = next;
+        }
+
+        @Override
+        public Void call() {
+            Workspace workspace = workspaces.poll();
+            if (workspace == null) {
+                workspace = new Workspace(tileSize);
+            }
+            try {
+                for (int i = next.getAndIncrement(); i < tiles.length / 4; i = next.getAndIncrement()) {
+                    decodeTile(scan, tiles, i, workspace);
+                }
+            } finally {
+                workspaces.add(workspace);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * The readers and tile buffers of one lane, allocated once at the largest tile size.
+     */
+    private static final class Workspace {
+        final QRCodeReader reader = new QRCodeReader();
+        final QRCodeMultiReader multiReader = new QRCodeMultiReader();
+        final Rect rect = new Rect();
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        final byte[] luminances;
+
+        Workspace(int tileSize) {
+            // Only read for luminance, RGB_565 keeps enough of it at half the memory
+            options.inPreferredConfig = Bitmap.Config.RGB_565;
+            options.inMutable = true;
+            options.inBitmap = Bitmap.createBitmap(tileSize, tileSize, Bitmap.Config.RGB_565);
+            luminances = new byte[tileSize * tileSize];
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package com.zorouyang.cameraxapp.util;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.util.Size;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Picks the image analysis resolution from measurements rather than a hardcoded size.
+ *
+ * <p>On the first run on a device model every tier, smallest first, is used for
+ * {@link #SAMPLES_PER_TIER} frames while decode latency and hit rate are recorded. The chosen
+ * tier is the one with the best hit rate among those that decode within
+ * {@link #LATENCY_BUDGET_MS}, or the largest such tier when nothing was scanned during
+ * calibration. The choice is persisted per device model, so later cold starts skip calibration.
+ */
+public final class ResolutionController {
+
+    private static final String TAG = ResolutionController.class.getSimpleName();
+
+    private static final String PREFS_NAME = "resolution_tiers";
+
+    private static final int SAMPLES_PER_TIER = 30;
+    // Frames still in flight from the previous tier right after a rebind
+    private static final int WARMUP_FRAMES = 5;
+    private static final long LATENCY_BUDGET_MS = 120;
+
+    /** Candidate analysis resolutions, largest first */
+    public static final Size[] TIERS = {
+            new Size(4256, 2832),
+            new Size(2592, 1944),
+            new Size(1920, 1080),
+            new Size(1280, 720),
+    };
+
+    public interface OnTierChangedListener {
+        /**
+         * Called on the main thread when the analysis use case should be rebound.
+         */
+        void onTierChanged(Size resolution);
+    }
+
+    private final SharedPreferences preferences;
+    private final OnTierChangedListener listener;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private final int[] frames = new int[TIERS.length];
+    private final int[] hits = new int[TIERS.length];
+    private final long[] latencyNanos = new long[TIERS.length];
+
+    private int tier;
+    private boolean calibrating;
+    private int warmup;
+
+    public ResolutionController(Context context, OnTierChangedListener listener) {
+        this.preferences = context.getApplicationContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        this.listener = listener;
+
+        int persisted = indexOf(preferences.getString(Build.MODEL, null));
+        if (persisted >= 0) {
+            tier = persisted;
+            calibrating = false;
+        } else {
+            tier = TIERS.length - 1;
+            calibrating = true;
+            warmup = WARMUP_FRAMES;
+        }
+        Log.d(TAG, Build.MODEL + ": start at " + TIERS[tier] + ", calibrating: " + calibrating);
+    }
+
+    public synchronized Size getResolution() {
+        return TIERS[tier];
+    }
+
+    public synchronized boolean isCalibrating() {
+        return calibrating;
+    }
+
+    /**
+     * Record one decoded frame. May be called from any decode worker.
+     *
+     * @param latencyNanos How long the frame took to decode.
+     * @param hit          Whether a code was found.
+     */
+    public synchronized void onFrameDecoded(long latencyNanos, boolean hit) {
+        if (!calibrating) {
+            return;
+        }
+        if (warmup > 0) {
+            warmup--;
+            return;
+        }
+
+        frames[tier]++;
+        this.latencyNanos[tier] += latencyNanos;
+        if (hit) {
+            hits[tier]++;
+        }
+        if (frames[tier] < SAMPLES_PER_TIER) {
+            return;
+        }
+
+        Log.d(TAG, "Tier " + TIERS[tier] + ": " + hits[tier] + "/" + frames[tier]
+                + " hits, " + averageLatencyMs(tier) + " ms");
+        // Larger tiers will only be slower, stop once this one is over budget
+        if (tier > 0 && averageLatencyMs(tier) <= LATENCY_BUDGET_MS) {
+            switchTo(tier - 1);
+        } else {
+            finishCalibration();
+        }
+    }
+
+    /**
+     * Forget the persisted tier and calibrate again from the smallest one.
+     */
+    public synchronized void recalibrate() {
+        preferences.edit().remove(Build.MODEL).apply();
+        for (int i = 0; i < TIERS.length; i++) {
+            frames[i] = 0;
+            hits[i] = 0;
+            latencyNanos[i] = 0;
+        }
+        calibrating = true;
+        switchTo(TIERS.length - 1);
+    }
+
+    private void finishCalibration() {
+        int best = -1;
+        int largestInBudget = -1;
+        for (int i = 0; i < TIERS.length; i++) {
+            if (frames[i] == 0 || averageLatencyMs(i) > LATENCY_BUDGET_MS) {
+                continue;
+            }
+            if (largestInBudget < 0) {
+                largestInBudget = i;
+            }
+            if (hits[i] > 0 && (best < 0 || hitRate(i) > hitRate(best))) {
+                best = i;
+            }
+        }
+        if (best < 0) {
+            best = largestInBudget >= 0 ? largestInBudget : TIERS.length - 1;
+        }
+
+        calibrating = false;
+        preferences.edit().putString(Build.MODEL, TIERS[best].toString()).apply();
+        Log.d(TAG, Build.MODEL + ": calibrated to " + TIERS[best]);
+        if (best != tier) {
+            switchTo(best);
+        }
+    }
+
+    private void switchTo(int tier) {
+        this.tier = tier;
+        this.warmup = WARMUP_FRAMES;
+        final Size resolution = TIERS[tier];
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onTierChanged(resolution);
+            }
+        });
+    }
+
+    private long averageLatencyMs(int tier) {
+        return frames[tier] == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(latencyNanos[tier] / frames[tier]);
+    }
+
+    private double hitRate(int tier) {
+        return frames[tier] == 0 ? 0 : (double) hits[tier] / frames[tier];
+    }
+
+    private static int indexOf(String size) {
+        if (size == null) {
+            return -1;
+        }
+        for (int i = 0; i < TIERS.length; i++) {
+            if (TIERS[i].toString().equals(size)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
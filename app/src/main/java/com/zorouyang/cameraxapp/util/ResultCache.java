@@ -0,0 +1,73 @@
+package com.zorouyang.cameraxapp.util;
+
+import android.os.SystemClock;
+import com.google.zxing.Result;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A bounded LRU cache of recently seen codes, keyed by text and format, used in continuous scan
+ * mode so a code that stays in view is reported once.
+ *
+ * <p>Every sighting refreshes the entry, a code is reported again only after it has been out of
+ * view for longer than the time to live. Thread-safe.
+ */
+public final class ResultCache {
+
+    private final long ttlMillis;
+    private final LinkedHashMap<String, Long> lastSeen;
+
+    private long hits;
+    private long misses;
+
+    /**
+     * @param maxEntries How many codes are remembered at most.
+     * @param ttlMillis  How long a code is remembered after it was last seen.
+     */
+    public ResultCache(final int maxEntries, long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+        this.lastSeen = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Record a sighting of {@code result}.
+     *
+     * @return Whether the code is new and should be reported.
+     */
+    public synchronized boolean offer(Result result) {
+        String key = result.getBarcodeFormat().name() + ':' + result.getText();
+        long now = SystemClock.elapsedRealtime();
+        Long seen = lastSeen.put(key, now);
+        if (seen != null && now - seen <= ttlMillis) {
+            hits++;
+            return false;
+        }
+        misses++;
+        return true;
+    }
+
+    public synchronized void clear() {
+        lastSeen.clear();
+    }
+
+    /**
+     * @return The share of sightings that were suppressed as already reported.
+     */
+    public synchronized double getHitRate() {
+        long total = hits + misses;
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ResultCache{size=" + lastSeen.size() + ", hits=" + hits + ", misses=" + misses
+                + ", hitRate=" + String.format(Locale.US, "%.2f", getHitRate()) + "}";
+    }
+}
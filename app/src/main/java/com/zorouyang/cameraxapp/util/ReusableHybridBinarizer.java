@@ -0,0 +1,250 @@
+/*
+ * Copyright 2009 ZXing authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zorouyang.cameraxapp.util;
+
+import com.google.zxing.Binarizer;
+import com.google.zxing.LuminanceSource;
+import com.google.zxing.NotFoundException;
+import com.google.zxing.common.BitMatrix;
+import com.google.zxing.common.GlobalHistogramBinarizer;
+import com.google.zxing.common.HybridBinarizer;
+
+/**
+ * A drop-in for {@link HybridBinarizer} with the same output, that does not allocate per frame.
+ *
+ * <p>{@link HybridBinarizer} allocates a new black point table and {@link BitMatrix} for every
+ * bitmap. Here both live in a per-thread workspace: the black points in one flat table grown to
+ * the largest frame seen, the bit matrices in a slot per size a frame is binarized at, so the
+ * attempts of a frame, and all following frames of the same size, clear and refill the same
+ * matrices.
+ *
+ * <p>The flip side is that a matrix is only valid until the next bitmap of the same size is
+ * binarized on the same thread. That holds for the decode attempts, which finish with a bitmap
+ * before making the next one, but not for readers that crop or rotate a bitmap and come back to
+ * it, like {@link com.google.zxing.multi.GenericMultipleBarcodeReader}. Use
+ * {@link HybridBinarizer} for those.
+ */
+public final class ReusableHybridBinarizer extends GlobalHistogramBinarizer {
+
+    // Same constants as HybridBinarizer
+    private static final int BLOCK_SIZE_POWER = 3;
+    private static final int BLOCK_SIZE = 1 << BLOCK_SIZE_POWER;
+    private static final int BLOCK_SIZE_MASK = BLOCK_SIZE - 1;
+    private static final int MINIMUM_DIMENSION = BLOCK_SIZE * 5;
+    private static final int MIN_DYNAMIC_RANGE = 24;
+
+    // The sizes a live decode thread binarizes: cropped, full frame, every pyramid level and the
+    // tracked region, which CodeTracker keeps to a few sizes
+    private static final int MATRIX_SLOTS = 3 + LuminancePyramid.LEVELS;
+
+    private static final ThreadLocal<Workspace> sWorkspace = new ThreadLocal<Workspace>() {
+        @Override
+        protected Workspace initialValue() {
+            return new Workspace();
+        }
+    };
+
+    private BitMatrix matrix;
+
+    public ReusableHybridBinarizer(LuminanceSource source) {
+        super(source);
+    }
+
+    @Override
+    public BitMatrix getBlackMatrix() throws NotFoundException {
+        if (matrix != null) {
+            return matrix;
+        }
+        LuminanceSource source = getLuminanceSource();
+        int width = source.getWidth();
+        int height = source.getHeight();
+        if (width >= MINIMUM_DIMENSION && height >= MINIMUM_DIMENSION) {
+            byte[] luminances = source.getMatrix();
+            int subWidth = width >> BLOCK_SIZE_POWER;
+            if ((width & BLOCK_SIZE_MASK) != 0) {
+                subWidth++;
+            }
+            int subHeight = height >> BLOCK_SIZE_POWER;
+            if ((height & BLOCK_SIZE_MASK) != 0) {
+                subHeight++;
+            }
+            Workspace workspace = sWorkspace.get();
+            int[] blackPoints = workspace.blackPoints(subWidth * subHeight);
+            calculateBlackPoints(luminances, subWidth, subHeight, width, height, blackPoints);
+            BitMatrix newMatrix = workspace.matrix(width, height);
+            calculateThresholdForBlock(luminances, subWidth, subHeight, width, height, blackPoints, newMatrix);
+            matrix = newMatrix;
+        } else {
+            // If the image is too small, fall back to the global histogram approach
+            matrix = super.getBlackMatrix();
+        }
+        return matrix;
+    }
+
+    @Override
+    public Binarizer createBinarizer(LuminanceSource source) {
+        return new ReusableHybridBinarizer(source);
+    }
+
+    /**
+     * For each block in the image, calculate the average black point using a 5x5 grid of the
+     * blocks around it.
+     */
+    private static void calculateThresholdForBlock(byte[] luminances, int subWidth, int subHeight,
+                                                   int width, int height, int[] blackPoints, BitMatrix matrix) {
+        int maxYOffset = height - BLOCK_SIZE;
+        int maxXOffset = width - BLOCK_SIZE;
+        for (int y = 0; y < subHeight; y++) {
+            int yoffset = y << BLOCK_SIZE_POWER;
+            if (yoffset > maxYOffset) {
+                yoffset = maxYOffset;
+            }
+            int top = cap(y, 2, subHeight - 3);
+            for (int x = 0; x < subWidth; x++) {
+                int xoffset = x << BLOCK_SIZE_POWER;
+                if (xoffset > maxXOffset) {
+                    xoffset = maxXOffset;
+                }
+                int left = cap(x, 2, subWidth - 3);
+                int sum = 0;
+                for (int z = -2; z <= 2; z++) {
+                    int row = (top + z) * subWidth + left;
+                    sum += blackPoints[row - 2] + blackPoints[row - 1] + blackPoints[row]
+                            + blackPoints[row + 1] + blackPoints[row + 2];
+                }
+                thresholdBlock(luminances, xoffset, yoffset, sum / 25, width, matrix);
+            }
+        }
+    }
+
+    private static int cap(int value, int min, int max) {
+        return value < min ? min : value > max ? max : value;
+    }
+
+    private static void thresholdBlock(byte[] luminances, int xoffset, int yoffset, int threshold,
+                                       int stride, BitMatrix matrix) {
+        for (int y = 0, offset = yoffset * stride + xoffset; y < BLOCK_SIZE; y++, offset += stride) {
+            for (int x = 0; x < BLOCK_SIZE; x++) {
+                // <= so that black == 0 pixels are black even if the threshold is 0
+                if ((luminances[offset + x] & 0xFF) <= threshold) {
+                    matrix.set(xoffset + x, yoffset + y);
+                }
+            }
+        }
+    }
+
+    /**
+     * Calculate a single black point for each block of pixels, into {@code blackPoints} row by row.
+     */
+    private static void calculateBlackPoints(byte[] luminances, int subWidth, int subHeight,
+                                             int width, int height, int[] blackPoints) {
+        int maxYOffset = height - BLOCK_SIZE;
+        int maxXOffset = width - BLOCK_SIZE;
+        for (int y = 0; y < subHeight; y++) {
+            int yoffset = y << BLOCK_SIZE_POWER;
+            if (yoffset > maxYOffset) {
+                yoffset = maxYOffset;
+            }
+            int row = y * subWidth;
+            for (int x = 0; x < subWidth; x++) {
+                int xoffset = x << BLOCK_SIZE_POWER;
+                if (xoffset > maxXOffset) {
+                    xoffset = maxXOffset;
+                }
+                int sum = 0;
+                int min = 0xFF;
+                int max = 0;
+                for (int yy = 0, offset = yoffset * width + xoffset; yy < BLOCK_SIZE; yy++, offset += width) {
+                    for (int xx = 0; xx < BLOCK_SIZE; xx++) {
+                        int pixel = luminances[offset + xx] & 0xFF;
+                        sum += pixel;
+                        if (pixel < min) {
+                            min = pixel;
+                        }
+                        if (pixel > max) {
+                            max = pixel;
+                        }
+                    }
+                    // Once the dynamic range is met, finish the rest of the rows quickly
+                    if (max - min > MIN_DYNAMIC_RANGE) {
+                        for (yy++, offset += width; yy < BLOCK_SIZE; yy++, offset += width) {
+                            for (int xx = 0; xx < BLOCK_SIZE; xx++) {
+                                sum += luminances[offset + xx] & 0xFF;
+                            }
+                        }
+                    }
+                }
+
+                // The default estimate is the average of the values in the block
+                int average = sum >> (BLOCK_SIZE_POWER * 2);
+                if (max - min <= MIN_DYNAMIC_RANGE) {
+                    // A low contrast block is assumed to be white, unless its neighbours say otherwise
+                    average = min / 2;
+                    if (y > 0 && x > 0) {
+                        int above = row - subWidth + x;
+                        int averageNeighborBlackPoint =
+                                (blackPoints[above] + (2 * blackPoints[row + x - 1]) + blackPoints[above - 1]) / 4;
+                        if (min < averageNeighborBlackPoint) {
+                            average = averageNeighborBlackPoint;
+                        }
+                    }
+                }
+                blackPoints[row + x] = average;
+            }
+        }
+    }
+
+    /**
+     * The buffers of one thread.
+     */
+    private static final class Workspace {
+
+        private int[] blackPoints = new int[0];
+        private final BitMatrix[] matrices = new BitMatrix[MATRIX_SLOTS];
+        private final long[] lastUsed = new long[MATRIX_SLOTS];
+        private long uses;
+
+        int[] blackPoints(int size) {
+            if (blackPoints.length < size) {
+                blackPoints = new int[size];
+            }
+            return blackPoints;
+        }
+
+        /**
+         * @return A cleared matrix of the given size, the least recently used slot is replaced when
+         * there is none.
+         */
+        BitMatrix matrix(int width, int height) {
+            int slot = 0;
+            for (int i = 0; i < MATRIX_SLOTS; i++) {
+                BitMatrix candidate = matrices[i];
+                if (candidate != null && candidate.getWidth() == width && candidate.getHeight() == height) {
+                    candidate.clear();
+                    lastUsed[i] = ++uses;
+                    return candidate;
+                }
+                if (lastUsed[i] < lastUsed[slot]) {
+                    slot = i;
+                }
+            }
+            matrices[slot] = new BitMatrix(width, height);
+            lastUsed[slot] = ++uses;
+            return matrices[slot];
+        }
+    }
+}
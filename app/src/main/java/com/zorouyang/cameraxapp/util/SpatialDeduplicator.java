@@ -0,0 +1,88 @@
+package com.zorouyang.cameraxapp.util;
+
+import android.graphics.RectF;
+import com.google.zxing.Result;
+import com.google.zxing.ResultPoint;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Removes results that describe the same code, as the multi readers may find one code more than
+ * once, e.g. from overlapping sub-images.
+ *
+ * <p>Two results are the same code when the bounding boxes of their {@link ResultPoint}s overlap
+ * by at least {@link #MIN_OVERLAP} (intersection over union), or when they carry the same text and
+ * format and their boxes touch. Results without points are compared by text and format only.
+ */
+public final class SpatialDeduplicator {
+
+    public static final float MIN_OVERLAP = 0.5f;
+
+    private SpatialDeduplicator() {
+    }
+
+    /**
+     * @return The results without duplicates, the first of each duplicate group is kept.
+     */
+    public static List<Result> dedupe(Result[] results) {
+        List<Result> unique = new ArrayList<>(results.length);
+        List<RectF> boxes = new ArrayList<>(results.length);
+        for (Result result : results) {
+            RectF box = boundingBox(result.getResultPoints());
+            boolean duplicate = false;
+            for (int i = 0; i < unique.size() && !duplicate; i++) {
+                duplicate = isSameCode(result, box, unique.get(i), boxes.get(i));
+            }
+            if (!duplicate) {
+                unique.add(result);
+                boxes.add(box);
+            }
+        }
+        return unique;
+    }
+
+    /**
+     * @return The box enclosing all points, or null if there are none.
+     */
+    public static RectF boundingBox(ResultPoint[] points) {
+        RectF box = null;
+        if (points == null) {
+            return null;
+        }
+        for (ResultPoint point : points) {
+            if (point == null) {
+                continue;
+            }
+            if (box == null) {
+                box = new RectF(point.getX(), point.getY(), point.getX(), point.getY());
+            } else {
+                box.union(point.getX(), point.getY());
+            }
+        }
+        return box;
+    }
+
+    private static boolean isSameCode(Result a, RectF boxA, Result b, RectF boxB) {
+        boolean samePayload = a.getBarcodeFormat() == b.getBarcodeFormat() && a.getText().equals(b.getText());
+        if (boxA == null || boxB == null) {
+            return samePayload;
+        }
+        // Inclusive, the boxes of 1D codes are flat lines
+        if (boxA.left > boxB.right || boxB.left > boxA.right || boxA.top > boxB.bottom || boxB.top > boxA.bottom) {
+            return false;
+        }
+        return samePayload || intersectionOverUnion(boxA, boxB) >= MIN_OVERLAP;
+    }
+
+    private static float intersectionOverUnion(RectF a, RectF b) {
+        float width = Math.min(a.right, b.right) - Math.max(a.left, b.left);
+        float height = Math.min(a.bottom, b.bottom) - Math.max(a.top, b.top);
+        if (width <= 0 || height <= 0) {
+            return 0;
+        }
+        float intersection = width * height;
+        float union = a.width() * a.height() + b.width() * b.height() - intersection;
+        return union <= 0 ? 0 : intersection / union;
+    }
+}
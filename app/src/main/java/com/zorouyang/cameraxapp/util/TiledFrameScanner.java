@@ -0,0 +1,235 @@
+package com.zorouyang.cameraxapp.util;
+
+import com.google.zxing.BinaryBitmap;
+import com.google.zxing.DecodeHintType;
+import com.google.zxing.LuminanceSource;
+import com.google.zxing.ReaderException;
+import com.google.zxing.Result;
+import com.google.zxing.qrcode.QRCodeReader;
+
+import java.util.Map;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Decodes a whole frame as overlapping tiles in parallel on the {@link DecodePool}, so small,
+ * distant codes anywhere in a high resolution frame are searched on all cores instead of one.
+ *
+ * <p>Tiles are three expected code sizes wide and overlap by one code size, so any code up to that
+ * size lies whole in at least one tile. The first tile that decodes cancels the rest: tiles not
+ * started yet are skipped, as are all tiles once the deadline of the frame being decoded has
+ * passed. A tile already decoding can't be interrupted. Tiles are decoded as QR codes.
+ * Thread-safe, one scanner may serve several decoders.
+ */
+public final class TiledFrameScanner {
+
+    // Smaller tiles cost more in overlap and per-tile overhead than they save
+    private static final int MIN_TILE_SIZE = 480;
+    // Without an expected code size, codes are assumed to be up to this share of the shorter side
+    private static final int DEFAULT_CODE_SIZE_DIVISOR = 6;
+
+    // Not tied to a scanner, the pool threads outlive the scanners
+    private static final ThreadLocal<Workspace> sWorkspaces = new ThreadLocal<Workspace>() {
+        @Override
+        protected Workspace initialValue() {
+            return new Workspace();
+        }
+    };
+
+    private volatile int expectedCodeSize;
+    private volatile Layout layout;
+    private volatile boolean shutdown;
+
+    private final AtomicLong scans = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong tilesDecoded = new AtomicLong();
+    private final AtomicLong tilesSkipped = new AtomicLong();
+
+    /**
+     * @param size The side in pixels of the largest code expected, or 0 to derive it from the frame size.
+     */
+    public void setExpectedCodeSize(int size) {
+        expectedCodeSize = size;
+        layout = null;
+    }
+
+    /**
+     * Decode {@code source} tile by tile.
+     *
+     * @param inverted      Whether to decode the inverted tiles.
+     * @param deadlineNanos The {@link System#nanoTime()} after which no tile is started, the end
+     *                      of the frame's budget.
+     * @return The result in {@code source} coordinates, or null if no tile held a code.
+     */
+    public Result scan(LuminanceSource source, boolean inverted, Map<DecodeHintType, ?> hints, long deadlineNanos) {
+        if (shutdown) {
+            return null;
+        }
+        scans.incrementAndGet();
+        Scan scan = new Scan(source, inverted, hints, deadlineNanos,
+                getLayout(source.getWidth(), source.getHeight()));
+        if (scan.layout.count == 1) {
+            // Nothing to split, not worth a hand-off to the pool
+            decodeTile(scan, 0);
+        } else {
+            DecodePool.get().invoke(new TileTask(scan, 0, scan.layout.count));
+        }
+        Result rawResult = scan.found.get();
+        if (rawResult != null) {
+            hits.incrementAndGet();
+        }
+        return rawResult;
+    }
+
+    /**
+     * Stop starting tiles, scans after this find nothing.
+     */
+    public void shutdown() {
+        shutdown = true;
+    }
+
+    private Layout getLayout(int width, int height) {
+        Layout current = layout;
+        if (current == null || current.width != width || current.height != height) {
+            int codeSize = expectedCodeSize > 0 ? expectedCodeSize : Math.min(width, height) / DEFAULT_CODE_SIZE_DIVISOR;
+            current = new Layout(width, height, Math.max(MIN_TILE_SIZE, codeSize * 3), codeSize);
+            layout = current;
+        }
+        return current;
+    }
+
+    private void decodeTile(Scan scan, int index) {
+        if (shutdown || scan.found.get() != null || System.nanoTime() > scan.deadlineNanos) {
+            tilesSkipped.incrementAndGet();
+            return;
+        }
+        tilesDecoded.incrementAndGet();
+
+        int[] tiles = scan.layout.tiles;
+        int left = tiles[index * 4];
+        int top = tiles[index * 4 + 1];
+        int width = tiles[index * 4 + 2];
+        int height = tiles[index * 4 + 3];
+
+        Workspace workspace = sWorkspaces.get();
+        LuminanceSource tile;
+        if (scan.source instanceof ByteBufferLuminanceSource) {
+            tile = ((ByteBufferLuminanceSource) scan.source).crop(left, top, width, height, workspace.matrix(width * height));
+        } else {
+            tile = scan.source.crop(left, top, width, height);
+        }
+        if (scan.inverted) {
+            tile = tile.invert();
+        }
+
+        BinaryBitmap bitmap = new BinaryBitmap(new ReusableHybridBinarizer(tile));
+        try {
+            Result rawResult = workspace.reader.decode(bitmap, scan.hints);
+            scan.found.compareAndSet(null, Decoder.transformResult(rawResult, 1, left, top));
+        } catch (ReaderException ignored) {
+        } finally {
+            workspace.reader.reset();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "TiledFrameScanner{scans=" + scans.get()
+                + ", hits=" + hits.get() + ", tilesDecoded=" + tilesDecoded.get()
+                + ", tilesSkipped=" + tilesSkipped.get() + "}";
+    }
+
+    /**
+     * The tiles of one frame size, as left, top, width, height quadruples.
+     */
+    private static final class Layout {
+        final int width;
+        final int height;
+        final int count;
+        final int[] tiles;
+
+        Layout(int width, int height, int tileSize, int overlap) {
+            this.width = width;
+            this.height = height;
+            int tileWidth = Math.min(tileSize, width);
+            int tileHeight = Math.min(tileSize, height);
+            int step = tileSize - overlap;
+            int columns = width <= tileWidth ? 1 : (width - tileWidth + step - 1) / step + 1;
+            int rows = height <= tileHeight ? 1 : (height - tileHeight + step - 1) / step + 1;
+            count = columns * rows;
+            tiles = new int[count * 4];
+            int i = 0;
+            for (int row = 0; row < rows; row++) {
+                // The last row and column are flush with the frame edge
+                int top = Math.min(row * step, height - tileHeight);
+                for (int column = 0; column < columns; column++) {
+                    tiles[i++] = Math.min(column * step, width - tileWidth);
+                    tiles[i++] = top;
+                    tiles[i++] = tileWidth;
+                    tiles[i++] = tileHeight;
+                }
+            }
+        }
+    }
+
+    /**
+     * One frame being scanned, shared by its tile tasks.
+     */
+    private static final class Scan {
+        final LuminanceSource source;
+        final boolean inverted;
+        final Map<DecodeHintType, ?> hints;
+        final long deadlineNanos;
+        final Layout layout;
+        final AtomicReference<Result> found = new AtomicReference<>();
+
+        Scan(LuminanceSource source, boolean inverted, Map<DecodeHintType, ?> hints, long deadlineNanos, Layout layout) {
+            this.source = source;
+            this.inverted = inverted;
+            this.hints = hints;
+            this.deadlineNanos = deadlineNanos;
+            this.layout = layout;
+        }
+    }
+
+    /**
+     * Splits a range of tiles in halves down to single tiles.
+     */
+    private final class TileTask extends RecursiveAction {
+        private final Scan scan;
+        private final int from;
+        private final int to;
+
+        TileTask(Scan scan, int from, int to) {
+            this.scan = scan;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                decodeTile(scan, from);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new TileTask(scan, from, middle), new TileTask(scan, middle, to));
+        }
+    }
+
+    /**
+     * The reader and tile buffer of one pool thread, ZXing readers are not thread-safe.
+     */
+    private static final class Workspace {
+        final QRCodeReader reader = new QRCodeReader();
+        private byte[] matrix = new byte[0];
+
+        byte[] matrix(int size) {
+            if (matrix.length < size) {
+                matrix = new byte[size];
+            }
+            return matrix;
+        }
+    }
+}
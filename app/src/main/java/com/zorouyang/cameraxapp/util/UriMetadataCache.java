@@ -0,0 +1,114 @@
+package com.zorouyang.cameraxapp.util;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.provider.DocumentsContract;
+import android.provider.MediaStore;
+import android.provider.OpenableColumns;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers the size and modification time of content URIs for a short while, so the lookups
+ * repeated for one image, e.g. for a cache key and then a decode, cost one query.
+ *
+ * <p>Works with MediaStore and document provider URIs alike, without the {@code _data} path
+ * column. Entries expire after {@link #MAX_AGE_MILLIS}, an image changed in place is picked up by
+ * the next lookup after that. Thread-safe.
+ */
+public final class UriMetadataCache {
+
+    private static final String TAG = UriMetadataCache.class.getSimpleName();
+
+    public static final long MAX_AGE_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    private final ContentResolver resolver;
+    private final LruCache<Uri, Metadata> cache;
+
+    public static final class Metadata {
+        /**
+         * The size in bytes, -1 if unknown.
+         */
+        public final long size;
+        /**
+         * The modification time in milliseconds, -1 if unknown.
+         */
+        public final long lastModified;
+        private final long loadedAt;
+
+        Metadata(long size, long lastModified, long loadedAt) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.loadedAt = loadedAt;
+        }
+
+        /**
+         * @return Whether a change of the content is bound to change the size or modification time.
+         */
+        public boolean isKnown() {
+            return size >= 0 && lastModified >= 0;
+        }
+    }
+
+    public UriMetadataCache(ContentResolver resolver, int maxEntries) {
+        this.resolver = resolver;
+        this.cache = new LruCache<>(maxEntries);
+    }
+
+    /**
+     * @return The metadata of {@code uri}, or null if it can't be queried.
+     */
+    public Metadata get(Uri uri) {
+        long now = SystemClock.elapsedRealtime();
+        Metadata metadata = cache.get(uri);
+        if (metadata != null && now - metadata.loadedAt <= MAX_AGE_MILLIS) {
+            return metadata;
+        }
+        metadata = query(uri, now);
+        if (metadata != null) {
+            cache.put(uri, metadata);
+        }
+        return metadata;
+    }
+
+    private Metadata query(Uri uri, long now) {
+        Cursor cursor;
+        try {
+            // All columns, MediaStore and document providers name the modification time differently
+            cursor = resolver.query(uri, null, null, null, null);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Failed to query " + uri, e);
+            return null;
+        }
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            long size = getLong(cursor, OpenableColumns.SIZE);
+            long lastModified = getLong(cursor, DocumentsContract.Document.COLUMN_LAST_MODIFIED);
+            if (lastModified < 0) {
+                long seconds = getLong(cursor, MediaStore.MediaColumns.DATE_MODIFIED);
+                lastModified = seconds < 0 ? -1 : TimeUnit.SECONDS.toMillis(seconds);
+            }
+            return new Metadata(size, lastModified, now);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static long getLong(Cursor cursor, String column) {
+        int index = cursor.getColumnIndex(column);
+        return index < 0 || cursor.isNull(index) ? -1 : cursor.getLong(index);
+    }
+
+    public void clear() {
+        cache.evictAll();
+    }
+}
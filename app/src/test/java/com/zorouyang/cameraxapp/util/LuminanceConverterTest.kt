@@ -0,0 +1,166 @@
+package com.zorouyang.cameraxapp.util
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.Arrays
+import java.util.Locale
+import java.util.Random
+import java.util.concurrent.atomic.AtomicIntegerArray
+
+/**
+ * Checks [LuminanceConverter] against the conversion ImageDecoder.getYUV420sp used before, and
+ * benchmarks the two on a gallery sized image.
+ */
+class LuminanceConverterTest {
+
+    @Test
+    fun toLuminance_extremesAndWeights() {
+        val argb = intArrayOf(-0x1000000, -0x1, -0x10000, -0xff0100, -0xffff01)
+        val luminances = ByteArray(argb.size)
+        LuminanceConverter.toLuminance(argb, 0, luminances, 0, argb.size)
+        // Black, white, and the BT.601 weights of red, green and blue out of 256
+        assertArrayEquals(byteArrayOf(0, 255.toByte(), 76, 149.toByte(), 28), luminances)
+    }
+
+    @Test
+    fun toLuminance_honorsOffsets() {
+        val argb = intArrayOf(0, -0x1, -0x1, 0)
+        val luminances = ByteArray(5)
+        LuminanceConverter.toLuminance(argb, 1, luminances, 2, 2)
+        assertArrayEquals(byteArrayOf(0, 0, 255.toByte(), 255.toByte(), 0), luminances)
+    }
+
+    @Test
+    fun toLuminance_matchesReferenceLuma() {
+        // The reference writes video range luma, 16 to 235, the conversion full range luma, 0 to 255
+        for ((width, height) in listOf(37 to 23, 64 to 64, 1201 to 999)) {
+            val argb = randomArgb(width, height)
+            val yuv = newYuv(width, height)
+            referenceEncodeYUV420SP(yuv, argb, width, height)
+
+            val luminances = convert(argb, width, height)
+            for (i in 0 until width * height) {
+                val videoRange = 16 + (luminances[i].toInt() and 0xff) * 219 / 255.0
+                val reference = yuv[i].toInt() and 0xff
+                assertTrue("${width}x$height pixel $i: $reference vs $videoRange",
+                        Math.abs(reference - videoRange) <= MAX_REFERENCE_DEVIATION)
+            }
+        }
+    }
+
+    @Test
+    fun forEachBand_runsEveryRowOnce() {
+        // Odd sizes, and sizes on both sides of the parallel threshold
+        for ((width, height) in listOf(37 to 23, 64 to 64, 1201 to 999)) {
+            val runs = AtomicIntegerArray(height)
+            LuminanceConverter.forEachBand(width, height) { fromRow, toRow ->
+                for (row in fromRow until toRow) {
+                    runs.incrementAndGet(row)
+                }
+            }
+            for (row in 0 until height) {
+                assertEquals("${width}x$height row $row", 1, runs.get(row))
+            }
+        }
+    }
+
+    @Test
+    fun forEachBand_matchesSingleBand() {
+        val width = 1201
+        val height = 999
+        val argb = randomArgb(width, height)
+        val expected = ByteArray(width * height)
+        LuminanceConverter.toLuminance(argb, 0, expected, 0, width * height)
+        assertArrayEquals(expected, convert(argb, width, height))
+    }
+
+    @Test
+    fun benchmark() {
+        // ImageDecoder.MAX_IMAGE_RESOLUTION
+        val width = 1200
+        val height = 1200
+        val argb = randomArgb(width, height)
+        val yuv = newYuv(width, height)
+        val luminances = ByteArray(width * height)
+
+        val reference = time {
+            // As getYUV420sp did, clearing the buffer before overwriting it
+            Arrays.fill(yuv, 0.toByte())
+            referenceEncodeYUV420SP(yuv, argb, width, height)
+        }
+        val converted = time { convert(argb, width, height, luminances) }
+
+        val report = "${width}x$height on ${Runtime.getRuntime().availableProcessors()} cores: " +
+                "reference %.2f ms, banded luminance %.2f ms (%.1fx)".format(
+                        Locale.US, reference, converted, reference / converted)
+        println(report)
+        assertTrue(report, converted < reference)
+    }
+
+    /**
+     * The conversion as ImageDecoder.getLuminance runs it, in bands on the decode pool.
+     */
+    private fun convert(argb: IntArray, width: Int, height: Int,
+                        luminances: ByteArray = ByteArray(width * height)): ByteArray {
+        LuminanceConverter.forEachBand(width, height) { fromRow, toRow ->
+            LuminanceConverter.toLuminance(argb, fromRow * width, luminances, fromRow * width,
+                    (toRow - fromRow) * width)
+        }
+        return luminances
+    }
+
+    private fun time(block: () -> Unit): Double {
+        repeat(WARM_UP) { block() }
+        val start = System.nanoTime()
+        repeat(RUNS) { block() }
+        return (System.nanoTime() - start) / 1e6 / RUNS
+    }
+
+    private fun randomArgb(width: Int, height: Int): IntArray {
+        val random = Random(width * 31L + height)
+        return IntArray(width * height) { random.nextInt() or -0x1000000 }
+    }
+
+    private fun newYuv(width: Int, height: Int) = ByteArray((width + 1) / 2 * 2 * ((height + 1) / 2 * 2) * 3 / 2)
+
+    /**
+     * ImageDecoder.encodeYUV420SP as it was, the oracle of the luma and the baseline of the benchmark.
+     */
+    private fun referenceEncodeYUV420SP(yuv420sp: ByteArray, argb: IntArray, width: Int, height: Int) {
+        val frameSize = width * height
+        var yIndex = 0
+        var uvIndex = frameSize
+        var rgbIndex = 0
+        for (j in 0 until height) {
+            for (i in 0 until width) {
+                val r = argb[rgbIndex] and 0xff0000 shr 16
+                val g = argb[rgbIndex] and 0xff00 shr 8
+                val b = argb[rgbIndex] and 0xff
+                rgbIndex++
+
+                var y = (66 * r + 129 * g + 25 * b + 128 shr 8) + 16
+                var u = (-38 * r - 74 * g + 112 * b + 128 shr 8) + 128
+                var v = (112 * r - 94 * g - 18 * b + 128 shr 8) + 128
+
+                y = Math.max(0, Math.min(y, 255))
+                u = Math.max(0, Math.min(u, 255))
+                v = Math.max(0, Math.min(v, 255))
+
+                yuv420sp[yIndex++] = y.toByte()
+                if (j % 2 == 0 && i % 2 == 0) {
+                    yuv420sp[uvIndex++] = v.toByte()
+                    yuv420sp[uvIndex++] = u.toByte()
+                }
+            }
+        }
+    }
+
+    companion object {
+        private const val WARM_UP = 5
+        private const val RUNS = 20
+        // Both round down, and the weights differ slightly once scaled to the same range
+        private const val MAX_REFERENCE_DEVIATION = 2.0
+    }
+}
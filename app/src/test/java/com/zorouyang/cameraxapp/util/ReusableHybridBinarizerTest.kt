@@ -0,0 +1,109 @@
+package com.zorouyang.cameraxapp.util
+
+import com.google.zxing.LuminanceSource
+import com.google.zxing.NotFoundException
+import com.google.zxing.PlanarYUVLuminanceSource
+import com.google.zxing.common.BitArray
+import com.google.zxing.common.BitMatrix
+import com.google.zxing.common.HybridBinarizer
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import java.util.Random
+
+/**
+ * Checks [ReusableHybridBinarizer] against ZXing's [HybridBinarizer], on sizes both sides of its
+ * 40 pixel minimum and on frames that change size and reuse each other's matrices.
+ */
+class ReusableHybridBinarizerTest {
+
+    @Test
+    fun randomSources_matchHybridBinarizer() {
+        for ((width, height) in SIZES) {
+            assertSameOutput(randomSource(width, height, width * 31L + height))
+        }
+    }
+
+    @Test
+    fun syntheticSources_matchHybridBinarizer() {
+        for ((width, height) in SIZES) {
+            assertSameOutput(flatWithSquares(width, height))
+            assertSameOutput(gradient(width, height))
+        }
+    }
+
+    @Test
+    fun consecutiveFrames_reuseSlotsAndMatchHybridBinarizer() {
+        // More sizes than slots, revisited in turn, with new content each time so a matrix that was
+        // not cleared shows up
+        val sizes = listOf(640 to 480, 40 to 40, 320 to 240, 160 to 120, 80 to 60, 41 to 97,
+                640 to 480, 512 to 512, 320 to 240, 40 to 40, 640 to 480)
+        var seed = 0L
+        repeat(3) {
+            for ((width, height) in sizes) {
+                assertSameOutput(randomSource(width, height, seed++))
+                assertSameOutput(flatWithSquares(width, height))
+            }
+        }
+    }
+
+    private fun assertSameOutput(source: LuminanceSource) {
+        val expected = HybridBinarizer(source)
+        val actual = ReusableHybridBinarizer(source)
+        val name = "${source.width}x${source.height}"
+        assertEquals("$name matrix", outcome { expected.blackMatrix }, outcome { actual.blackMatrix })
+        for (y in listOf(0, source.height / 2, source.height - 1)) {
+            assertEquals("$name row $y", outcome { expected.getBlackRow(y, null) },
+                    outcome { actual.getBlackRow(y, null) })
+        }
+    }
+
+    /**
+     * The value, or the kind of failure, so that both binarizers must also agree on what they reject.
+     */
+    private fun outcome(block: () -> Any): Any = try {
+        // A copy, a reused matrix is overwritten by the next frame of its size
+        when (val value = block()) {
+            is BitMatrix -> value.clone()
+            is BitArray -> value.clone()
+            else -> value
+        }
+    } catch (e: NotFoundException) {
+        NotFoundException::class.java
+    }
+
+    private fun randomSource(width: Int, height: Int, seed: Long): LuminanceSource {
+        val random = Random(seed)
+        val luminances = ByteArray(width * height)
+        random.nextBytes(luminances)
+        return source(luminances, width, height)
+    }
+
+    /**
+     * Dark squares on a flat background, so most blocks are below the dynamic range and take their
+     * black point from their neighbours.
+     */
+    private fun flatWithSquares(width: Int, height: Int): LuminanceSource {
+        val luminances = ByteArray(width * height) { 200.toByte() }
+        for (y in 0 until height) {
+            for (x in 0 until width) {
+                if ((x / 13 + y / 11) % 3 == 0) {
+                    luminances[y * width + x] = 30
+                }
+            }
+        }
+        return source(luminances, width, height)
+    }
+
+    private fun gradient(width: Int, height: Int): LuminanceSource {
+        val luminances = ByteArray(width * height) { ((it % width) * 255 / width).toByte() }
+        return source(luminances, width, height)
+    }
+
+    private fun source(luminances: ByteArray, width: Int, height: Int): LuminanceSource =
+            PlanarYUVLuminanceSource(luminances, width, height, 0, 0, width, height, false)
+
+    companion object {
+        // Below, at and above the 40 pixel minimum, odd sizes that leave partial blocks, and a frame
+        private val SIZES = listOf(24 to 24, 39 to 100, 40 to 40, 41 to 41, 57 to 203, 640 to 480, 1201 to 999)
+    }
+}